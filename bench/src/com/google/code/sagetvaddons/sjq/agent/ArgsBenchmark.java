@@ -0,0 +1,86 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Argument handling done for every test and exe: variable expansion (ProcessRunner.expandArgs) and splitting the
+ * command line into arguments (ProcessRunner.getArgsArray)
+ * @author dbattams
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArgsBenchmark {
+
+	@Param({"plain", "typical", "long"})
+	public String args;
+
+	private String cmdLine;
+	private Map<String, String> metadata;
+
+	@Setup
+	public void setup() {
+		metadata = new HashMap<String, String>();
+		metadata.put("SJQ4_PATH", "/var/media/tv");
+		metadata.put("SJQ4_LAST_SEGMENT", "TheShow-TheEpisode-1234567-0.ts");
+		metadata.put("SJQ4_ID", "1234567");
+		metadata.put("SJQ4_TITLE", "The Show");
+		metadata.put("SJQ4_EPISODE", "The Episode");
+		metadata.put("SJQ4_TYPE", "MediaFile");
+		for(int i = 0; i < 20; ++i)
+			metadata.put("SJQ4_EXTRA" + i, "value" + i);
+		if(args.equals("plain"))
+			cmdLine = "--ini=/etc/comskip.ini --threads=2 /var/media/tv/TheShow-TheEpisode-1234567-0.ts";
+		else if(args.equals("typical"))
+			cmdLine = "--ini=/etc/comskip.ini --output \"$SJQ4_PATH\" \"$SJQ4_PATH/$SJQ4_LAST_SEGMENT\" ${SJQ4_ID}.edl";
+		else {
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < 20; ++i)
+				sb.append("-D").append(i).append("=\"$SJQ4_EXTRA").append(i).append(" ${SJQ4_TITLE}\" $SJQ4_UNDEFINED ");
+			cmdLine = sb.toString();
+		}
+	}
+
+	@Benchmark
+	public String expandArgs() {
+		return VarExpander.expand(cmdLine, metadata);
+	}
+
+	@Benchmark
+	public String[] getArgsArray() {
+		return ProcessRunner.getArgsArray(cmdLine);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reloading the agent's properties file (Config.parseProps), which happens whenever the file's contents change
+ * @author dbattams
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int tasks;
+
+	private File dir;
+	private Config cfg;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = File.createTempFile("sjqbench", "");
+		if(!dir.delete() || !dir.mkdir())
+			throw new IOException("Unable to create " + dir);
+		File props = new File(dir, "sjqagent.properties");
+		PrintWriter w = new PrintWriter(new FileWriter(props));
+		try {
+			w.println("agent.port=23344");
+			w.println("agent.schedule=* * * * 1-6");
+			w.println("agent.resources=100");
+			w.println("agent.mapdir=D:/tv/,//sagetvsrv/tv/;E:/movies/,//sagetvsrv/movies/");
+			for(int i = 0; i < tasks; ++i) {
+				String t = "task.task" + i + ".";
+				w.println(t + "exe=/usr/local/bin/task" + i);
+				w.println(t + "args=--input \"$SJQ4_PATH/$SJQ4_LAST_SEGMENT\" --id ${SJQ4_ID}");
+				w.println(t + "test=/opt/sjq/scripts/test" + i + ".groovy");
+				w.println(t + "testargs=$SJQ4_ID");
+				w.println(t + "schedule=* 1-6 * * *");
+				w.println(t + "resources=" + (i % 100 + 1));
+				w.println(t + "maxprocs=2");
+				w.println(t + "maxtime=7200");
+				w.println(t + "rcmin=0");
+				w.println(t + "rcmax=1");
+				w.println(t + "nice=10");
+				w.println(t + "affinity=0-3");
+			}
+		} finally {
+			w.close();
+		}
+		cfg = new Config(props.getAbsolutePath());
+	}
+
+	@TearDown
+	public void tearDown() {
+		for(File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	@Benchmark
+	public int parseProps() {
+		cfg.parseProps();
+		return cfg.getTasks().length;
+	}
+}
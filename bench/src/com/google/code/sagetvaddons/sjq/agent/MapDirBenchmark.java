@@ -0,0 +1,83 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Remapping a batch of paths, as Tools.mapDir(String[]) does; the mapper is built directly since Tools gets its
+ * mapper from the agent's config
+ * @author dbattams
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapDirBenchmark {
+	static private final int BATCH = 1000;
+
+	@Param({"1", "10", "100"})
+	public int mappings;
+
+	@Param({"false", "true"})
+	public boolean ignoreCase;
+
+	private DirMapper mapper;
+	private String[] paths;
+
+	@Setup
+	public void setup() {
+		Map<String, String> dirs = new HashMap<String, String>();
+		for(int i = 0; i < mappings; ++i)
+			dirs.put("D:\\tv" + i + "\\", "\\\\sagetvsrv\\tv" + i + "\\");
+		dirs.put("D:\\tv0\\movies\\", "\\\\mediasrv\\movies\\");
+		mapper = new DirMapper(dirs, ignoreCase);
+		paths = new String[BATCH];
+		for(int i = 0; i < BATCH; ++i) {
+			switch(i % 4) {
+			case 0: paths[i] = "D:\\tv" + (i % mappings) + "\\TheShow-TheEpisode-" + i + "-0.ts"; break;
+			case 1: paths[i] = "d:\\TV" + (i % mappings) + "\\TheShow-TheEpisode-" + i + "-0.ts"; break;
+			case 2: paths[i] = "D:\\tv0\\movies\\TheMovie-" + i + "-0.mkv"; break;
+			default: paths[i] = "E:\\other\\TheShow-TheEpisode-" + i + "-0.ts";
+			}
+		}
+	}
+
+	@Benchmark
+	public String[] mapBatch() {
+		String[] mapped = new String[paths.length];
+		for(int i = 0; i < paths.length; ++i)
+			mapped[i] = mapper.map(paths[i]);
+		return mapped;
+	}
+}
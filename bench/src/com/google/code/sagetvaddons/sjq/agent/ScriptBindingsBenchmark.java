@@ -0,0 +1,71 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+
+/**
+ * Setting up the bindings and context a script runs with (ScriptRunner.createContext), done for every script run
+ * @author dbattams
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptBindingsBenchmark {
+
+	private QueuedTask qt;
+	private String[] args;
+
+	@Setup
+	public void setup() {
+		qt = new QueuedTask();
+		qt.setId("COMSKIP");
+		qt.setQueueId(1234);
+		qt.setServerHost("sagetvsrv");
+		qt.setServerPort(23347);
+		Map<String, String> metadata = new HashMap<String, String>();
+		for(int i = 0; i < 20; ++i)
+			metadata.put("SJQ4_VAR" + i, "value" + i);
+		qt.setMetadata(metadata);
+		args = new String[] {"/var/media/tv/TheShow-TheEpisode-1234567-0.ts", "--quick"};
+	}
+
+	@Benchmark
+	public ScriptContext createContext() {
+		return new ScriptRunner("/opt/sjq/scripts/test.groovy", args, qt).createContext();
+	}
+}
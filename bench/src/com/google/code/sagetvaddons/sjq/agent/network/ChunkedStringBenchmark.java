@@ -0,0 +1,73 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing task output the way it's sent to the server (ServerClient.writeChunkedString), to an in memory stream
+ * @author dbattams
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkedStringBenchmark {
+
+	@Param({"1024", "65536", "1048576"})
+	public int size;
+
+	private String output;
+	private ByteArrayOutputStream buf;
+	private ObjectOutputStream out;
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder sb = new StringBuilder(size);
+		int line = 0;
+		while(sb.length() < size)
+			sb.append("[").append(++line).append("] Processing frame ").append(line * 25).append(" of 162000 (caf\u00e9 \u2013 ok)\n");
+		output = sb.substring(0, size);
+		buf = new ByteArrayOutputStream(size * 2);
+		out = new ObjectOutputStream(buf);
+	}
+
+	@Benchmark
+	public long writeChunkedString() throws IOException {
+		buf.reset();
+		long bytes = ServerClient.writeChunkedString(out, output);
+		out.flush();
+		return bytes;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+
+/**
+ * Round trips of a task through each of the encodings used on the wire: Java serialization (legacy peers), the
+ * compact WireCodec encoding and the WireCodec update delta
+ * @author dbattams
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueuedTaskCodecBenchmark {
+
+	private QueuedTask received;
+	private QueuedTask qt;
+
+	@Setup
+	public void setup() {
+		received = new QueuedTask();
+		received.setId("COMSKIP");
+		received.setQueueId(1234567);
+		received.setExecutable("/usr/local/bin/comskip");
+		received.setExeArguments("--ini=/etc/comskip.ini \"$SJQ4_PATH/$SJQ4_LAST_SEGMENT\"");
+		received.setTest("/opt/sjq/scripts/comskip_test.groovy");
+		received.setTestArgs("$SJQ4_ID");
+		received.setSchedule("* * * * *");
+		received.setRequiredResources(50);
+		received.setMaxInstances(2);
+		received.setMaxTime(7200);
+		received.setServerHost("sagetvsrv");
+		received.setServerPort(23347);
+		received.setRmiPort(1098);
+		received.setCreated(new Date());
+		received.setState(QueuedTask.State.RUNNING);
+		Map<String, String> metadata = new HashMap<String, String>();
+		for(int i = 0; i < 20; ++i)
+			metadata.put("SJQ4_VAR" + i, "/var/media/tv/value" + i);
+		received.setMetadata(metadata);
+		qt = WireCodec.copy(received);
+		qt.setStarted(new Date());
+		qt.setCompleted(new Date());
+		qt.setState(QueuedTask.State.COMPLETED);
+		qt.getMetadata().put("SJQ4_EXE_CPUTIME", "123456");
+		qt.getMetadata().put("SJQ4_EXE_WALLTIME", "234567");
+	}
+
+	@Benchmark
+	public QueuedTask serialized() throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(buf);
+		out.writeObject(qt);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buf.toByteArray()));
+		return (QueuedTask)in.readObject();
+	}
+
+	@Benchmark
+	public QueuedTask compact() throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		WireCodec.writeQueuedTask(out, qt);
+		out.close();
+		return WireCodec.readQueuedTask(new DataInputStream(new ByteArrayInputStream(buf.toByteArray())));
+	}
+
+	@Benchmark
+	public QueuedTask delta() throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		WireCodec.writeDelta(out, received, qt);
+		out.close();
+		QueuedTask result = WireCodec.copy(received);
+		WireCodec.readDelta(new DataInputStream(new ByteArrayInputStream(buf.toByteArray())), result);
+		return result;
+	}
+}
@@ -0,0 +1,596 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.code.sagetvaddons.sjq.agent.listener.AgentListener;
+import com.google.code.sagetvaddons.sjq.agent.loadtest.FakeServer;
+import com.google.code.sagetvaddons.sjq.agent.loadtest.LoadClient;
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+
+/**
+ * <p>End to end load test of the agent, against a stand in server and dummy executables.</p>
+ * <p>
+ *    The agent (with the conf/ of the working directory's parent, as usual, and an empty spool) and a FakeServer
+ *    are started in this JVM.  A driver then sends EXE, ISACTIVE and KILL commands to the agent at fixed rates, each
+ *    on its own connection, for the configured duration; the load is open loop so a slow agent doesn't slow the
+ *    driver down.  Once the driver stops, the test waits for every accepted task to report its final state to the
+ *    server and reports:
+ *    <ul>
+ *       <li>Throughput and the p50/p99/max of the EXE round trip and of dispatch to completion</li>
+ *       <li>How many tasks the agent refused and why, and any that never reported back</li>
+ *       <li>The heap high water mark (sampled), the process' peak RSS and the heap retained after a GC</li>
+ *       <li>Threads alive after the drain that weren't before the load started, by name</li>
+ *    </ul>
+ *    The agent's own metrics are written to loadtest-metrics.prom next to the conf/ dir.  Options are given as
+ *    --name=value; run with --help for the list.  The dummy executable is a shell script, so the default task needs
+ *    a Unix-like host; use --exe to supply something else.
+ * </p>
+ * @author dbattams
+ *
+ */
+public final class LoadTest {
+
+	static private final String TASK_TYPE = "LOADTEST";
+	static private final String HOST = "127.0.0.1";
+	static private final String THREAD_PREFIX = "LoadTest";
+	static private final long SAMPLE_MILLIS = 100L;
+
+	static private final String[][] OPTIONS = {
+		{"duration", "60", "Seconds to send load for"},
+		{"rate", "2", "EXE commands per second"},
+		{"isactive-rate", "10", "ISACTIVE commands per second"},
+		{"kill-rate", "0.1", "KILL commands per second"},
+		{"task-ms", "2000", "Run time of each dummy task, in milliseconds"},
+		{"jitter", "0.5", "Randomly vary each task's run time by up to this fraction"},
+		{"output-lines", "20", "Lines of output written by each dummy task"},
+		{"resources", "1", "Resources required by each task"},
+		{"protocol", "compact", "Encoding used by the server and driver: compact or serialized"},
+		{"server-port", "23399", "Port the stand in server listens on"},
+		{"server-delay", "0", "Milliseconds the server waits before running each command, to simulate a loaded server"},
+		{"exe", "", "Executable to run for each task, given the run time (seconds) and output lines as args; default is a generated shell script"},
+		{"drain", "300", "Seconds to wait for accepted tasks to finish once the load stops"},
+		{"settle", "65", "Seconds to wait after the drain before looking for leaked threads; idle pool threads take 60s to exit"}
+	};
+
+	private final Map<String, String> opts;
+	private final Random rand;
+	private final AtomicLong ids;
+	private final Map<Long, FakeServer.Dispatch> accepted;
+	private final List<Long> exeTimes;
+	private final Map<String, AtomicInteger> refusals;
+	private final AtomicInteger exeErrors;
+	private final AtomicInteger isActiveTrue;
+	private final AtomicInteger isActiveFalse;
+	private final AtomicInteger isActiveEarly;
+	private final AtomicInteger isActiveErrors;
+	private final AtomicInteger killsOk;
+	private final AtomicInteger killsRefused;
+	private final AtomicInteger killErrors;
+	private final AtomicLong heapHighWater;
+
+	private FakeServer server;
+	private boolean compact;
+	private String exe;
+
+	private LoadTest(Map<String, String> opts) {
+		this.opts = opts;
+		rand = new Random();
+		ids = new AtomicLong(0);
+		accepted = new ConcurrentHashMap<Long, FakeServer.Dispatch>();
+		exeTimes = new ArrayList<Long>();
+		refusals = new ConcurrentHashMap<String, AtomicInteger>();
+		exeErrors = new AtomicInteger(0);
+		isActiveTrue = new AtomicInteger(0);
+		isActiveFalse = new AtomicInteger(0);
+		isActiveEarly = new AtomicInteger(0);
+		isActiveErrors = new AtomicInteger(0);
+		killsOk = new AtomicInteger(0);
+		killsRefused = new AtomicInteger(0);
+		killErrors = new AtomicInteger(0);
+		heapHighWater = new AtomicLong(0);
+	}
+
+	/**
+	 * @param args Options, as --name=value
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> opts = new TreeMap<String, String>();
+		for(String[] o : OPTIONS)
+			opts.put(o[0], o[1]);
+		for(String arg : args) {
+			int eq = arg.indexOf('=');
+			String name = arg.startsWith("--") ? arg.substring(2, eq > 0 ? eq : arg.length()) : "";
+			if(eq < 0 || !opts.containsKey(name)) {
+				if(!arg.equals("--help"))
+					System.err.println("Unknown option: " + arg + "\n");
+				usage();
+				System.exit(arg.equals("--help") ? 0 : 2);
+			}
+			opts.put(name, arg.substring(eq + 1));
+		}
+		System.exit(new LoadTest(opts).run() ? 0 : 1);
+	}
+
+	static private void usage() {
+		System.err.println("Options:");
+		for(String[] o : OPTIONS)
+			System.err.println(String.format("  --%-14s %s [%s]", o[0] + "=", o[2], o[1]));
+	}
+
+	private double getDouble(String name) {
+		return Double.parseDouble(opts.get(name));
+	}
+
+	private int getInt(String name) {
+		return Integer.parseInt(opts.get(name));
+	}
+
+	/**
+	 * @return True if every accepted task reported back and no threads were leaked
+	 */
+	private boolean run() throws Exception {
+		Agent.configLog4j();
+		compact = !"serialized".equalsIgnoreCase(opts.get("protocol"));
+		exe = opts.get("exe").length() > 0 ? new File(opts.get("exe")).getAbsolutePath() : writeDummyExe();
+		server = FakeServer.start(getInt("server-port"), compact, getInt("server-delay"));
+		int port = startAgent();
+		System.out.println("Agent listening on " + HOST + ":" + port + "; server on " + HOST + ":" + server.getPort() + " [" + (compact ? "compact" : "serialized") + "]");
+
+		// Run one task first so the thread pools and server connections that exist at steady state are part of the baseline
+		FakeServer.Dispatch warmup = sendExe(100L);
+		if(warmup == null || !await(Arrays.asList(warmup), 60000L))
+			throw new IllegalStateException("Warm up task failed; check the agent's log");
+		accepted.clear();
+		synchronized(exeTimes) {
+			exeTimes.clear();
+		}
+		Map<String, Integer> threadsBefore = getThreadCounts();
+		long heapBefore = getRetainedHeap();
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		threadBean.resetPeakThreadCount();
+		heapHighWater.set(0);
+
+		ScheduledExecutorService sched = Executors.newScheduledThreadPool(2, daemonFactory(THREAD_PREFIX + "Scheduler-"));
+		final ExecutorService senders = Executors.newCachedThreadPool(daemonFactory(THREAD_PREFIX + "Sender-"));
+		final MemoryMXBean memBean = ManagementFactory.getMemoryMXBean();
+		sched.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				long used = memBean.getHeapMemoryUsage().getUsed();
+				if(used > heapHighWater.get())
+					heapHighWater.set(used);
+			}
+		}, 0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+		schedule(sched, senders, getDouble("rate"), new Runnable() {
+			@Override
+			public void run() {
+				sendExe(getTaskMillis());
+			}
+		});
+		schedule(sched, senders, getDouble("isactive-rate"), new Runnable() {
+			@Override
+			public void run() {
+				sendIsActive();
+			}
+		});
+		schedule(sched, senders, getDouble("kill-rate"), new Runnable() {
+			@Override
+			public void run() {
+				sendKill();
+			}
+		});
+
+		long loadStart = System.currentTimeMillis();
+		System.out.println("Sending load for " + getInt("duration") + "s...");
+		Thread.sleep(getInt("duration") * 1000L);
+		sched.shutdownNow();
+		senders.shutdown();
+		senders.awaitTermination(60, TimeUnit.SECONDS);
+		long loadEnd = System.currentTimeMillis();
+		System.out.println("Load stopped; waiting up to " + getInt("drain") + "s for " + countIncomplete() + " task(s) to finish...");
+		boolean drained = await(new ArrayList<FakeServer.Dispatch>(accepted.values()), getInt("drain") * 1000L);
+		long drainEnd = System.currentTimeMillis();
+		if(getInt("settle") > 0) {
+			System.out.println("Waiting " + getInt("settle") + "s for idle threads to exit...");
+			Thread.sleep(getInt("settle") * 1000L);
+		}
+		Map<String, Integer> threadsAfter = getThreadCounts();
+		long heapAfter = getRetainedHeap();
+		writeMetrics();
+		return report(loadStart, loadEnd, drainEnd, drained, threadsBefore, threadsAfter, threadBean.getPeakThreadCount(), heapBefore, heapAfter);
+	}
+
+	/**
+	 * Start the agent's listener, as Agent.main() does, and wait for it to accept connections
+	 * @return The port the agent is listening on
+	 */
+	private int startAgent() throws IOException, InterruptedException {
+		// Results spooled by an earlier run would be replayed to this run's server, whose queue ids start over
+		FileUtils.deleteDirectory(new File(Agent.BASE_DIR, "spool"));
+		final Config cfg = Config.get();
+		ResultSpool.get();
+		ParentEnvironment.get();
+		HostLoad.get();
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					new AgentListener("com.google.code.sagetvaddons.sjq.agent.commands", cfg.getPort(), Agent.class.getPackage().getName() + ".listener").init();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, THREAD_PREFIX + "Agent");
+		t.setDaemon(true);
+		t.start();
+		for(int i = 0; i < 100; ++i) {
+			try {
+				new LoadClient(HOST, cfg.getPort(), false).close();
+				return cfg.getPort();
+			} catch(IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IllegalStateException("Agent did not start listening on port " + cfg.getPort());
+	}
+
+	/**
+	 * Write the dummy task: prints the requested lines of output then sleeps for the requested time
+	 * @return The script's absolute path
+	 */
+	private String writeDummyExe() throws IOException {
+		File f = new File(Agent.BASE_DIR, "loadtest-task.sh");
+		Writer w = new FileWriter(f);
+		try {
+			w.write("#!/bin/sh\n");
+			w.write("# Dummy SJQ task for the agent load test; args: run time in seconds, lines of output\n");
+			w.write("i=0\n");
+			w.write("while [ $i -lt \"$2\" ]; do\n");
+			w.write("\techo \"loadtest output line $i\"\n");
+			w.write("\ti=$((i + 1))\n");
+			w.write("done\n");
+			w.write("sleep \"$1\"\n");
+		} finally {
+			w.close();
+		}
+		if(!f.setExecutable(true))
+			throw new IOException("Unable to make " + f.getAbsolutePath() + " executable");
+		return f.getAbsolutePath();
+	}
+
+	static private ThreadFactory daemonFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Hand the given command to the senders at the given rate
+	 */
+	static private void schedule(ScheduledExecutorService sched, final ExecutorService senders, double rate, final Runnable cmd) {
+		if(rate <= 0)
+			return;
+		sched.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				senders.execute(cmd);
+			}
+		}, 0, Math.max(1L, (long)(1000000L / rate)), TimeUnit.MICROSECONDS);
+	}
+
+	private long getTaskMillis() {
+		double jitter = getDouble("jitter");
+		return Math.max(0L, (long)(getInt("task-ms") * (1 + jitter * (2 * rand.nextDouble() - 1))));
+	}
+
+	private LoadClient connect() throws IOException {
+		return new LoadClient(HOST, Config.get().getPort(), compact);
+	}
+
+	/**
+	 * Dispatch a dummy task to the agent
+	 * @param runMillis How long the task should run for
+	 * @return The task's dispatch record or null if the agent didn't accept it
+	 */
+	private FakeServer.Dispatch sendExe(long runMillis) {
+		QueuedTask qt = new QueuedTask();
+		qt.setId(TASK_TYPE);
+		qt.setQueueId(ids.incrementAndGet());
+		qt.setExecutable(exe);
+		qt.setExeArguments(String.format("%.3f %d", runMillis / 1000.0, getInt("output-lines")));
+		qt.setRequiredResources(getInt("resources"));
+		qt.setMaxInstances(0);
+		qt.setSchedule("");
+		qt.setMaxTime(3600);
+		qt.setServerHost(HOST);
+		qt.setServerPort(server.getPort());
+		qt.setState(QueuedTask.State.RUNNING);
+		qt.setCreated(new Date());
+		qt.setStarted(new Date());
+		FakeServer.Dispatch d = server.dispatch(qt);
+		LoadClient clnt = null;
+		try {
+			clnt = connect();
+			NetworkAck ack = clnt.exe(qt);
+			long rtt = System.currentTimeMillis() - d.getDispatched();
+			if(ack != null && ack.isOk()) {
+				accepted.put(qt.getQueueId(), d);
+				synchronized(exeTimes) {
+					exeTimes.add(rtt);
+				}
+				return d;
+			}
+			String reason = ack != null ? ack.getMsg().replaceAll("\\d+", "N") : "No response";
+			refusals.putIfAbsent(reason, new AtomicInteger(0));
+			refusals.get(reason).incrementAndGet();
+		} catch(IOException e) {
+			exeErrors.incrementAndGet();
+		} finally {
+			if(clnt != null)
+				clnt.close();
+		}
+		return null;
+	}
+
+	/**
+	 * @return A random accepted task that hasn't reported its final state or null if there isn't one
+	 */
+	private FakeServer.Dispatch pickRunning(boolean notKilled) {
+		List<FakeServer.Dispatch> running = new ArrayList<FakeServer.Dispatch>();
+		for(FakeServer.Dispatch d : accepted.values())
+			if(d.getCompleted() < 0 && (!notKilled || d.getKilled() < 0))
+				running.add(d);
+		return running.isEmpty() ? null : running.get(rand.nextInt(running.size()));
+	}
+
+	private void sendIsActive() {
+		FakeServer.Dispatch d = pickRunning(false);
+		if(d == null)
+			return;
+		LoadClient clnt = null;
+		try {
+			clnt = connect();
+			NetworkAck ack = clnt.isActive(d.getTask());
+			if(ack == null || !ack.isOk())
+				isActiveErrors.incrementAndGet();
+			else if(Boolean.parseBoolean(ack.getMsg().trim()))
+				isActiveTrue.incrementAndGet();
+			else {
+				isActiveFalse.incrementAndGet();
+				// The agent reports the final state before it forgets a task, so this is a result that was spooled (or lost)
+				if(d.getCompleted() < 0)
+					isActiveEarly.incrementAndGet();
+			}
+		} catch(IOException e) {
+			isActiveErrors.incrementAndGet();
+		} finally {
+			if(clnt != null)
+				clnt.close();
+		}
+	}
+
+	private void sendKill() {
+		FakeServer.Dispatch d = pickRunning(true);
+		if(d == null)
+			return;
+		LoadClient clnt = null;
+		try {
+			clnt = connect();
+			NetworkAck ack = clnt.kill(d.getTask());
+			if(ack != null && ack.isOk()) {
+				d.setKilled(System.currentTimeMillis());
+				killsOk.incrementAndGet();
+			} else
+				killsRefused.incrementAndGet(); // Usually a task that finished on its own while the KILL was in flight
+		} catch(IOException e) {
+			killErrors.incrementAndGet();
+		} finally {
+			if(clnt != null)
+				clnt.close();
+		}
+	}
+
+	/**
+	 * Wait for the given tasks to report their final state
+	 * @return True if they all did before the timeout
+	 */
+	static private boolean await(List<FakeServer.Dispatch> tasks, long timeoutMillis) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeoutMillis;
+		for(FakeServer.Dispatch d : tasks)
+			while(d.getCompleted() < 0) {
+				if(System.currentTimeMillis() >= end)
+					return false;
+				Thread.sleep(50);
+			}
+		return true;
+	}
+
+	private int countIncomplete() {
+		int count = 0;
+		for(FakeServer.Dispatch d : accepted.values())
+			if(d.getCompleted() < 0)
+				++count;
+		return count;
+	}
+
+	/**
+	 * @return The number of live threads, by name with any trailing number replaced by N; this JVM's own threads and the stand in server's are left out
+	 */
+	static private Map<String, Integer> getThreadCounts() {
+		Map<String, Integer> counts = new TreeMap<String, Integer>();
+		for(Thread t : Thread.getAllStackTraces().keySet()) {
+			if(!t.isAlive() || t.getName().startsWith(THREAD_PREFIX) || t == Thread.currentThread())
+				continue;
+			String name = t.getName().replaceAll("\\d+$", "N");
+			Integer n = counts.get(name);
+			counts.put(name, n != null ? n + 1 : 1);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return The heap in use after a full GC
+	 */
+	static private long getRetainedHeap() {
+		for(int i = 0; i < 3; ++i)
+			System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * @return The process' peak resident set size, in bytes, or -1 if it's not available (only on Linux)
+	 */
+	static private long getPeakRss() {
+		File status = new File("/proc/self/status");
+		if(!status.canRead())
+			return -1;
+		try {
+			BufferedReader r = new BufferedReader(new FileReader(status));
+			try {
+				String line;
+				while((line = r.readLine()) != null)
+					if(line.startsWith("VmHWM:"))
+						return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024L;
+			} finally {
+				r.close();
+			}
+		} catch(IOException e) {
+			// Not available
+		}
+		return -1;
+	}
+
+	private void writeMetrics() throws IOException {
+		File f = new File(Agent.BASE_DIR, "loadtest-metrics.prom");
+		Writer w = new FileWriter(f);
+		try {
+			Metrics.get().write(w);
+		} finally {
+			w.close();
+		}
+	}
+
+	static private String percentiles(List<Long> values) {
+		if(values.isEmpty())
+			return "n/a";
+		long[] sorted = new long[values.size()];
+		for(int i = 0; i < sorted.length; ++i)
+			sorted[i] = values.get(i);
+		Arrays.sort(sorted);
+		return String.format("p50=%dms p99=%dms max=%dms (n=%d)", percentile(sorted, 50), percentile(sorted, 99), sorted[sorted.length - 1], sorted.length);
+	}
+
+	static private long percentile(long[] sorted, int p) {
+		int rank = (int)Math.ceil(p / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	static private String mb(long bytes) {
+		return bytes < 0 ? "n/a" : String.format("%.1fMB", bytes / 1048576.0);
+	}
+
+	private boolean report(long loadStart, long loadEnd, long drainEnd, boolean drained, Map<String, Integer> threadsBefore, Map<String, Integer> threadsAfter, int peakThreads, long heapBefore, long heapAfter) {
+		List<Long> completion = new ArrayList<Long>();
+		List<Long> killToFinal = new ArrayList<Long>();
+		Map<String, Integer> states = new TreeMap<String, Integer>();
+		int lost = 0;
+		long lastCompleted = loadStart;
+		long output = 0;
+		for(FakeServer.Dispatch d : accepted.values()) {
+			output += d.getOutputBytes();
+			if(d.getCompleted() < 0) {
+				++lost;
+				continue;
+			}
+			lastCompleted = Math.max(lastCompleted, d.getCompleted());
+			String state = d.getState().toString() + (d.getKilled() >= 0 ? " (killed)" : "");
+			Integer n = states.get(state);
+			states.put(state, n != null ? n + 1 : 1);
+			if(d.getKilled() >= 0)
+				killToFinal.add(Math.max(0L, d.getCompleted() - d.getKilled()));
+			else
+				completion.add(d.getCompleted() - d.getDispatched());
+		}
+		int finished = accepted.size() - lost;
+		double elapsed = Math.max(1L, lastCompleted - loadStart) / 1000.0;
+
+		StringBuilder sb = new StringBuilder("\n==== SJQ agent load test ====\n");
+		sb.append(String.format("Load: %ds at %s EXE/s, %s ISACTIVE/s, %s KILL/s; tasks run %sms (+/-%s), %s lines of output; server delay %sms%n",
+				(loadEnd - loadStart) / 1000, opts.get("rate"), opts.get("isactive-rate"), opts.get("kill-rate"), opts.get("task-ms"), opts.get("jitter"), opts.get("output-lines"), opts.get("server-delay")));
+		sb.append(String.format("Dispatched: %d, accepted: %d, refused: %d, errors: %d%n", ids.get() - 1, accepted.size(), ids.get() - 1 - accepted.size() - exeErrors.get(), exeErrors.get()));
+		for(Map.Entry<String, AtomicInteger> e : refusals.entrySet())
+			sb.append(String.format("    %6d x %s%n", e.getValue().get(), e.getKey()));
+		sb.append(String.format("Finished: %d %s; never reported back: %d%s%n", finished, states, lost, drained ? "" : " (drain timed out)"));
+		sb.append(String.format("Throughput: %.2f tasks/s (%d in %.1fs from first dispatch to last completion)%n", finished / elapsed, finished, elapsed));
+		synchronized(exeTimes) {
+			sb.append("EXE round trip: " + percentiles(exeTimes) + "\n");
+		}
+		sb.append("Dispatch to completion: " + percentiles(completion) + "\n");
+		sb.append("KILL to final state: " + percentiles(killToFinal) + "\n");
+		sb.append(String.format("ISACTIVE: %d true, %d false (%d before the final state arrived), %d errors%n", isActiveTrue.get(), isActiveFalse.get(), isActiveEarly.get(), isActiveErrors.get()));
+		sb.append(String.format("KILL: %d killed, %d refused, %d errors%n", killsOk.get(), killsRefused.get(), killErrors.get()));
+		sb.append("Server received: " + server.getCommandCounts() + String.format(", %d chars of output%n", output));
+		sb.append(String.format("Memory: heap high water %s, retained heap %s before / %s after, peak RSS %s%n", mb(heapHighWater.get()), mb(heapBefore), mb(heapAfter), mb(getPeakRss())));
+		sb.append(String.format("Threads: peak %d, drained after %.1fs%n", peakThreads, (drainEnd - loadEnd) / 1000.0));
+		int leaked = 0;
+		for(Map.Entry<String, Integer> e : threadsAfter.entrySet()) {
+			Integer before = threadsBefore.get(e.getKey());
+			int extra = e.getValue() - (before != null ? before : 0);
+			if(extra > 0) {
+				sb.append(String.format("    leaked? %d x %s%n", extra, e.getKey()));
+				leaked += extra;
+			}
+		}
+		sb.append("Leaked threads: " + leaked + "\n");
+		System.out.println(sb.toString());
+		return lost == 0 && leaked == 0;
+	}
+}
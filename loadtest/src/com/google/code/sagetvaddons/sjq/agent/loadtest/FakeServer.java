@@ -0,0 +1,389 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.loadtest;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
+import com.google.code.sagetvaddons.sjq.listener.Command;
+import com.google.code.sagetvaddons.sjq.listener.CommandFactory;
+import com.google.code.sagetvaddons.sjq.listener.Handler;
+import com.google.code.sagetvaddons.sjq.listener.SocketDetails;
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+
+/**
+ * <p>A stand in for an SJQ server, for load testing an agent without a SageTV server.</p>
+ * <p>
+ *    Speaks the server side of the protocol agents use to report back (PROTO, UPDATE, LOGEXE, LOGTEST, GETARGS,
+ *    SETARGS and SETTASKRES) and records what it's told about each task dispatched through it.  The command loop is
+ *    the same as the sjq-listener Handler's; the commands live in the loadtest.commands package.  Every connection
+ *    is handled on its own daemon thread named LoadTestServer-N, so they can be told apart from the agent's threads.
+ * </p>
+ * @author dbattams
+ *
+ */
+public final class FakeServer {
+	static private final Logger LOG = Logger.getLogger(FakeServer.class);
+
+	static private final String CMD_PKG = FakeServer.class.getPackage().getName() + ".commands";
+	static private final String CMD_QUIT = "QUIT";
+	static private final String CMD_PROTO = "PROTO";
+
+	/**
+	 * What the server knows about a task it has dispatched
+	 */
+	static public final class Dispatch {
+		private final QueuedTask qt;
+		private final long dispatched;
+		private volatile long killed;
+		private volatile long completed;
+		private volatile QueuedTask.State state;
+		private final AtomicLong outputBytes;
+
+		private Dispatch(QueuedTask qt, long dispatched) {
+			this.qt = qt;
+			this.dispatched = dispatched;
+			killed = -1;
+			completed = -1;
+			state = null;
+			outputBytes = new AtomicLong(0);
+		}
+
+		/**
+		 * @return The task as it was dispatched
+		 */
+		public QueuedTask getTask() {
+			return qt;
+		}
+
+		/**
+		 * @return When the task was dispatched
+		 */
+		public long getDispatched() {
+			return dispatched;
+		}
+
+		/**
+		 * @return When the agent acknowledged a KILL for the task or -1 if it was never killed
+		 */
+		public long getKilled() {
+			return killed;
+		}
+
+		/**
+		 * @param killed When the agent acknowledged a KILL for the task
+		 */
+		public void setKilled(long killed) {
+			this.killed = killed;
+		}
+
+		/**
+		 * @return When the agent reported the task's final state or -1 if it hasn't yet
+		 */
+		public long getCompleted() {
+			return completed;
+		}
+
+		/**
+		 * @return The final state reported by the agent or null if it hasn't reported one yet
+		 */
+		public QueuedTask.State getState() {
+			return state;
+		}
+
+		/**
+		 * @return The bytes of test and exe output received for the task
+		 */
+		public long getOutputBytes() {
+			return outputBytes.get();
+		}
+	}
+
+	static private FakeServer INSTANCE = null;
+
+	/**
+	 * Start the server; it accepts connections until the JVM exits
+	 * @param port The port to listen on
+	 * @param compact True to negotiate the compact encoding with agents or false to act as a server that predates it
+	 * @param delay Milliseconds to wait before running each command, to simulate a loaded server
+	 * @return The server
+	 * @throws IOException If the server socket could not be opened
+	 */
+	synchronized static public FakeServer start(int port, boolean compact, long delay) throws IOException {
+		if(INSTANCE != null)
+			throw new IllegalStateException("Server is already running!");
+		INSTANCE = new FakeServer(port, compact, delay);
+		return INSTANCE;
+	}
+
+	/**
+	 * @return The running server; only valid after start() has been called
+	 */
+	synchronized static public FakeServer get() {
+		return INSTANCE;
+	}
+
+	private final ServerSocket srv;
+	private final boolean compact;
+	private final long delay;
+	private final Map<Long, Dispatch> tasks;
+	private final ConcurrentHashMap<String, AtomicLong> commands;
+	private final Map<Long, String> args;
+	private final AtomicInteger threads;
+
+	private FakeServer(int port, boolean compact, long delay) throws IOException {
+		this.compact = compact;
+		this.delay = delay;
+		tasks = new ConcurrentHashMap<Long, Dispatch>();
+		commands = new ConcurrentHashMap<String, AtomicLong>();
+		args = new ConcurrentHashMap<Long, String>();
+		threads = new AtomicInteger(0);
+		srv = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "LoadTestServer-Accept");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return The port the server is listening on
+	 */
+	public int getPort() {
+		return srv.getLocalPort();
+	}
+
+	/**
+	 * @return True if the compact encoding is negotiated with agents
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Record a task that's about to be sent to an agent
+	 * @param qt The task
+	 * @return The task's dispatch record
+	 */
+	public Dispatch dispatch(QueuedTask qt) {
+		Dispatch d = new Dispatch(qt, System.currentTimeMillis());
+		tasks.put(qt.getQueueId(), d);
+		return d;
+	}
+
+	/**
+	 * @param id The task's queue id
+	 * @return The task's dispatch record or null if it was never dispatched
+	 */
+	public Dispatch getDispatch(long id) {
+		return tasks.get(id);
+	}
+
+	/**
+	 * @return Every task dispatched so far
+	 */
+	public Collection<Dispatch> getDispatches() {
+		return tasks.values();
+	}
+
+	/**
+	 * @return The number of each command received, by command name
+	 */
+	public Map<String, Long> getCommandCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> e : commands.entrySet())
+			counts.put(e.getKey(), e.getValue().get());
+		return counts;
+	}
+
+	/**
+	 * Record a task state update received from an agent; tasks count as completed once they reach a final state
+	 * @param qt The task, as reported by the agent
+	 * @return False if the task was never dispatched by this server
+	 */
+	public boolean update(QueuedTask qt) {
+		Dispatch d = tasks.get(qt.getQueueId());
+		if(d == null)
+			return false;
+		QueuedTask.State s = qt.getState();
+		if(s == QueuedTask.State.COMPLETED || s == QueuedTask.State.FAILED || s == QueuedTask.State.RETURNED || s == QueuedTask.State.SKIPPED) {
+			synchronized(d) {
+				if(d.completed < 0) {
+					d.completed = System.currentTimeMillis();
+					d.state = s;
+				} else
+					LOG.warn("Task " + qt.getQueueId() + " reported its final state more than once [" + d.state + " then " + s + "]");
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Record output received for a task
+	 * @param id The task's queue id
+	 * @param bytes The number of characters received
+	 */
+	public void addOutput(long id, long bytes) {
+		Dispatch d = tasks.get(id);
+		if(d != null)
+			d.outputBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * @param id The task's queue id
+	 * @return The exe arguments override set for the task or null if there isn't one
+	 */
+	public String getArgs(long id) {
+		return args.get(id);
+	}
+
+	/**
+	 * @param id The task's queue id
+	 * @param override The exe arguments override for the task or null to remove it
+	 */
+	public void setArgs(long id, String override) {
+		if(override != null)
+			args.put(id, override);
+		else
+			args.remove(id);
+	}
+
+	/**
+	 * Read the reference to a task sent by an agent; compact peers only send the queue id
+	 * @param in The connection's input stream
+	 * @return The task; for compact peers, a copy of the task as it was dispatched (or a bare task holding just the id if it wasn't)
+	 * @throws IOException On any error
+	 */
+	static public QueuedTask readTaskRef(ObjectInputStream in) throws IOException {
+		if(WireCodec.getPeerVersion() == WireCodec.SERIALIZED)
+			return WireCodec.readQueuedTask(in);
+		return getTask(in.readLong());
+	}
+
+	/**
+	 * @param id The task's queue id
+	 * @return A copy of the task as it was dispatched or a bare task holding just the id if it never was
+	 */
+	static public QueuedTask getTask(long id) {
+		Dispatch d = get().getDispatch(id);
+		if(d != null)
+			return WireCodec.copy(d.getTask());
+		QueuedTask qt = new QueuedTask();
+		qt.setQueueId(id);
+		return qt;
+	}
+
+	/**
+	 * Read a string written as a series of UTF chunks
+	 * @param in The connection's input stream
+	 * @return The number of characters read
+	 * @throws IOException On any error
+	 */
+	static public long readChunkedString(ObjectInputStream in) throws IOException {
+		int chunks = in.readInt();
+		long len = 0;
+		for(int i = 0; i < chunks; ++i)
+			len += in.readUTF().length();
+		return len;
+	}
+
+	private void accept() {
+		while(true) {
+			final Socket sock;
+			try {
+				sock = srv.accept();
+			} catch(IOException e) {
+				LOG.error("Load test server stopped accepting connections", e);
+				return;
+			}
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					handle(sock);
+				}
+			}, "LoadTestServer-" + threads.incrementAndGet());
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void handle(Socket sock) {
+		Handler.SOCKET_DETAILS.set(new SocketDetails(sock.getLocalAddress().getHostAddress(), sock.getLocalPort(), sock.getInetAddress().getHostAddress(), sock.getPort()));
+		WireCodec.setPeerVersion(WireCodec.SERIALIZED);
+		ObjectInputStream in = null;
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(sock.getOutputStream());
+			out.flush();
+			in = new ObjectInputStream(sock.getInputStream());
+			String cmd = null;
+			while(cmd == null || !cmd.toUpperCase().equals(CMD_QUIT)) {
+				cmd = in.readUTF();
+				count(cmd.toUpperCase());
+				Command c = !compact && cmd.toUpperCase().equals(CMD_PROTO) ? null : CommandFactory.get(cmd, CMD_PKG, in, out, CMD_PKG);
+				if(c != null) {
+					if(!cmd.toUpperCase().equals(CMD_QUIT)) {
+						out.writeUTF("OK |");
+						out.flush();
+						if(delay > 0)
+							Thread.sleep(delay);
+					}
+					c.execute();
+				} else {
+					out.writeUTF("ERR|Unrecognized command [" + cmd + "]");
+					out.flush();
+				}
+			}
+		} catch(InterruptedException e) {
+			LOG.warn("Interrupted while handling connection", e);
+		} catch(IOException e) {
+			LOG.debug("Connection from agent closed", e);
+		} finally {
+			if(in != null)
+				try { in.close(); } catch(IOException e) { LOG.error("IOError", e); }
+			if(out != null)
+				try { out.close(); } catch(IOException e) { LOG.error("IOError", e); }
+			try { sock.close(); } catch(IOException e) { LOG.error("IOError", e); }
+			Handler.SOCKET_DETAILS.remove();
+			WireCodec.setPeerVersion(WireCodec.SERIALIZED);
+		}
+	}
+
+	private void count(String cmd) {
+		AtomicLong n = commands.get(cmd);
+		if(n == null) {
+			commands.putIfAbsent(cmd, new AtomicLong(0));
+			n = commands.get(cmd);
+		}
+		n.incrementAndGet();
+	}
+}
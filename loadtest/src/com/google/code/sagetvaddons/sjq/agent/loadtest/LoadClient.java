@@ -0,0 +1,99 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.loadtest;
+
+import java.io.IOException;
+
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
+import com.google.code.sagetvaddons.sjq.listener.ListenerClient;
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+
+/**
+ * A server's connection to an agent, as used by the load driver to send EXE, ISACTIVE and KILL
+ * @author dbattams
+ *
+ */
+public final class LoadClient extends ListenerClient {
+
+	private final int wireVersion;
+
+	/**
+	 * @param host The agent host
+	 * @param port The agent port
+	 * @param compact True to negotiate the compact encoding or false to use serialization, like servers that predate it
+	 * @throws IOException If the agent could not be reached or the negotiation failed
+	 */
+	public LoadClient(String host, int port, boolean compact) throws IOException {
+		super(host, port, LoadClient.class.getPackage().getName());
+		wireVersion = compact ? negotiate() : WireCodec.SERIALIZED;
+	}
+
+	private int negotiate() throws IOException {
+		NetworkAck ack = sendCmd("PROTO");
+		if(ack == null || !ack.isOk())
+			throw new IOException("Agent rejected PROTO command!");
+		getOut().writeInt(WireCodec.VERSION);
+		getOut().flush();
+		int version = getIn().readInt();
+		ack = (NetworkAck)readObj();
+		if(ack == null || !ack.isOk())
+			throw new IOException("Agent rejected encoding negotiation!");
+		return version;
+	}
+
+	private NetworkAck sendTask(String cmd, QueuedTask qt) throws IOException {
+		NetworkAck ack = sendCmd(cmd);
+		if(ack == null || !ack.isOk())
+			return ack;
+		if(wireVersion == WireCodec.SERIALIZED)
+			getOut().writeObject(qt);
+		else
+			WireCodec.writeQueuedTask(getOut(), qt);
+		getOut().flush();
+		return (NetworkAck)readObj();
+	}
+
+	/**
+	 * Ask the agent to run a task
+	 * @param qt The task
+	 * @return The agent's ack; an OK ack means the task was accepted
+	 * @throws IOException On any error
+	 */
+	public NetworkAck exe(QueuedTask qt) throws IOException {
+		return sendTask("EXE", qt);
+	}
+
+	/**
+	 * Ask the agent if it's running a task
+	 * @param qt The task
+	 * @return The agent's ack; the message of an OK ack is "true" or "false"
+	 * @throws IOException On any error
+	 */
+	public NetworkAck isActive(QueuedTask qt) throws IOException {
+		return sendTask("ISACTIVE", qt);
+	}
+
+	/**
+	 * Ask the agent to kill a task
+	 * @param qt The task
+	 * @return The agent's ack; an OK ack means the task was killed
+	 * @throws IOException On any error
+	 */
+	public NetworkAck kill(QueuedTask qt) throws IOException {
+		return sendTask("KILL", qt);
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.loadtest.commands;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.google.code.sagetvaddons.sjq.agent.loadtest.FakeServer;
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
+import com.google.code.sagetvaddons.sjq.listener.Command;
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+
+/**
+ * Receive a task's updated state; compact peers send the queue id followed by only the fields that changed
+ * @author dbattams
+ *
+ */
+public class Update extends Command {
+
+	/**
+	 * @param in
+	 * @param out
+	 */
+	public Update(ObjectInputStream in, ObjectOutputStream out) {
+		super(in, out);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.google.code.sagetvaddons.sjq.listener.Command#execute()
+	 */
+	@Override
+	public void execute() throws IOException {
+		QueuedTask qt;
+		if(WireCodec.getPeerVersion() == WireCodec.SERIALIZED)
+			qt = WireCodec.readQueuedTask(getIn());
+		else {
+			qt = FakeServer.getTask(getIn().readLong());
+			WireCodec.readDelta(getIn(), qt);
+		}
+		getOut().writeObject(NetworkAck.get(FakeServer.get().update(qt) ? NetworkAck.OK : NetworkAck.ERR + "Unknown task [" + qt.getQueueId() + "]"));
+		getOut().flush();
+	}
+}
@@ -34,7 +34,7 @@ import org.apache.log4j.varia.NullAppender;
 
 import sagex.SageAPI;
 
-import com.google.code.sagetvaddons.sjq.listener.Listener;
+import com.google.code.sagetvaddons.sjq.agent.listener.AgentListener;
 
 public final class Agent {
 	static private final File findBaseDir() {
@@ -71,8 +71,35 @@ public final class Agent {
 		for(ScriptEngineFactory f : mgr.getEngineFactories())
 			msg.append("\t" + f.getEngineName() + "/" + f.getEngineVersion() + " " + f.getExtensions() + "\n");
 		System.out.println(msg.toString());
-		Listener listener = new Listener("com.google.code.sagetvaddons.sjq.agent.commands", cfg.getPort(), Agent.class.getPackage().getName() + ".listener");
-		listener.init();
+		ResultSpool.get(); // Start replaying any results left undelivered by a previous run
+		ParentEnvironment.get(); // Snapshot the environment now rather than when the first task starts
+		HostLoad.get(); // Start sampling so there are load figures by the time the first task arrives
+		cfg.addListener(new Config.Listener() {
+			@Override
+			public void configChanged(Config.Diff diff) {
+				ProcessLimits.update(diff);
+			}
+		});
+		Metrics.get().gauge("tasks_running", "Tasks currently running on this agent", new Metrics.Gauge() {
+			@Override
+			public double getValue() {
+				return TaskExecutor.get().getTotalRunning();
+			}
+		});
+		Metrics.get().gauge("resources_reserved", "Resources currently reserved by running tasks", new Metrics.Gauge() {
+			@Override
+			public double getValue() {
+				return ResourceLedger.get().getUsed();
+			}
+		});
+		MetricsEndpoint metrics = MetricsEndpoint.start();
+		AgentListener listener = new AgentListener("com.google.code.sagetvaddons.sjq.agent.commands", cfg.getPort(), Agent.class.getPackage().getName() + ".listener");
+		try {
+			listener.init();
+		} finally {
+			if(metrics != null)
+				metrics.stop();
+		}
 	}
 	
 	static void configLog4j() {
@@ -82,7 +109,9 @@ public final class Agent {
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		props.setProperty("log4j.appender.sjqAgentApp.File", BASE_DIR + props.getProperty("log4j.appender.sjqAgentApp.File"));
+		for(String k : props.stringPropertyNames())
+			if(k.startsWith("log4j.appender.") && k.endsWith(".File"))
+				props.setProperty(k, BASE_DIR + props.getProperty(k));
 		if(!Logger.getRootLogger().getAllAppenders().hasMoreElements())
 			Logger.getRootLogger().addAppender(new NullAppender());
 		PropertyConfigurator.configure(props);
@@ -0,0 +1,286 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A compiled agent or task schedule.</p>
+ * <p>
+ *    Schedules use the cron4j SchedulingPattern syntax (the same as the server): five fields (minute, hour, day
+ *    of month, month and day of week) of <code>*</code>, values, ranges and <code>/</code> steps, separated by
+ *    commas; <code>L</code> as the day of month means the last day; months and days of the week may be given by
+ *    name and several patterns may be joined with <code>|</code>.  A time matches a pattern only if every field
+ *    matches.  Each field is compiled into a bit set so a check is a handful of bit tests; the result for the
+ *    current minute and the next time the schedule is enabled are both cached.
+ * </p>
+ * <p>A schedule that fails to compile is logged and treated as always enabled; the server remains the final authority.</p>
+ * @author dbattams
+ *
+ */
+final class CronSchedule {
+	static private final Logger LOG = Logger.getLogger(CronSchedule.class);
+
+	static private final String[] MONTHS = {"JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"};
+	static private final String[] DAYS = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+	static private final long MINUTE = 60000L;
+	/**
+	 * How far ahead to look for the next enabled time before giving up; covers patterns such as Feb 29
+	 */
+	static private final int MAX_SEARCH_YEARS = 8;
+	static private final int MAX_CACHED = 256;
+	static private final Map<String, CronSchedule> CACHE = new ConcurrentHashMap<String, CronSchedule>();
+
+	/**
+	 * @param pattern The schedule
+	 * @return The compiled schedule; compiled schedules are cached so this is cheap to call for every task
+	 */
+	static CronSchedule get(String pattern) {
+		if(pattern == null)
+			pattern = "";
+		CronSchedule s = CACHE.get(pattern);
+		if(s == null) {
+			s = new CronSchedule(pattern);
+			if(CACHE.size() >= MAX_CACHED)
+				CACHE.clear();
+			CACHE.put(pattern, s);
+		}
+		return s;
+	}
+
+	static private final class Pattern {
+		private long minutes;
+		private int hours;
+		private int days;
+		private boolean lastDay;
+		private int months;
+		private int weekDays;
+
+		private boolean matches(Calendar c) {
+			int day = c.get(Calendar.DAY_OF_MONTH);
+			return (minutes & (1L << c.get(Calendar.MINUTE))) != 0
+				&& (hours & (1 << c.get(Calendar.HOUR_OF_DAY))) != 0
+				&& ((days & (1 << day)) != 0 || (lastDay && day == c.getActualMaximum(Calendar.DAY_OF_MONTH)))
+				&& (months & (1 << (c.get(Calendar.MONTH) + 1))) != 0
+				&& (weekDays & (1 << (c.get(Calendar.DAY_OF_WEEK) - 1))) != 0;
+		}
+	}
+
+	private final String pattern;
+	private final List<Pattern> patterns;
+	private final boolean always;
+
+	private long cachedMinute;
+	private boolean cachedEnabled;
+	private long cachedFrom;
+	private long cachedNext;
+
+	private CronSchedule(String pattern) {
+		this.pattern = pattern;
+		List<Pattern> compiled = new ArrayList<Pattern>();
+		boolean always = false;
+		if(pattern.trim().length() == 0)
+			always = true; // No schedule; always enabled
+		else {
+			try {
+				for(String p : pattern.split("\\|")) {
+					Pattern c = compile(p.trim());
+					compiled.add(c);
+					if(c.minutes == (1L << 60) - 1 && c.hours == (1 << 24) - 1 && c.days == -2 && c.months == 0x1FFE && c.weekDays == 0x7F)
+						always = true;
+				}
+			} catch(IllegalArgumentException e) {
+				LOG.error("Invalid schedule '" + pattern + "'; schedule will not be enforced by the agent: " + e.getMessage());
+				always = true;
+			}
+		}
+		this.always = always;
+		patterns = compiled;
+		cachedMinute = -1;
+		cachedFrom = cachedNext = -1;
+	}
+
+	static private Pattern compile(String p) {
+		String[] f = p.split("\\s+");
+		if(f.length != 5)
+			throw new IllegalArgumentException("Expected 5 fields but found " + f.length + " [" + p + "]");
+		Pattern c = new Pattern();
+		c.minutes = parseField(f[0], 0, 59, null);
+		c.hours = (int)parseField(f[1], 0, 23, null);
+		String dom = f[2];
+		if(dom.equalsIgnoreCase("L")) {
+			c.lastDay = true;
+			c.days = 0;
+		} else
+			c.days = (int)parseField(dom, 1, 31, null);
+		c.months = (int)parseField(f[3], 1, 12, MONTHS);
+		long dow = parseField(f[4], 0, 7, DAYS);
+		c.weekDays = (int)((dow | (dow >> 7)) & 0x7F); // 7 is also Sunday
+		return c;
+	}
+
+	/**
+	 * @return A bit set with bit n set if value n is allowed by the field
+	 */
+	static private long parseField(String field, int min, int max, String[] names) {
+		long bits = 0;
+		for(String part : field.split(",")) {
+			int step = 1;
+			int slash = part.indexOf('/');
+			if(slash >= 0) {
+				step = parseValue(part.substring(slash + 1), 1, max, null);
+				part = part.substring(0, slash);
+			}
+			int from, to;
+			if(part.equals("*")) {
+				from = min;
+				to = max;
+			} else {
+				int dash = part.indexOf('-');
+				from = parseValue(dash >= 0 ? part.substring(0, dash) : part, min, max, names);
+				to = dash >= 0 ? parseValue(part.substring(dash + 1), min, max, names) : (slash >= 0 ? max : from);
+			}
+			// A range may wrap around (i.e. 22-2 for hours)
+			int span = to >= from ? to - from : to - from + max - min + 1;
+			for(int i = 0; i <= span; i += step)
+				bits |= 1L << (min + (from - min + i) % (max - min + 1));
+		}
+		return bits;
+	}
+
+	static private int parseValue(String val, int min, int max, String[] names) {
+		if(names != null)
+			for(int i = 0; i < names.length; ++i)
+				if(names[i].equalsIgnoreCase(val))
+					return min + i;
+		int v;
+		try {
+			v = Integer.parseInt(val);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value '" + val + "'");
+		}
+		if(v < min || v > max)
+			throw new IllegalArgumentException("Value " + v + " is not between " + min + " and " + max);
+		return v;
+	}
+
+	/**
+	 * @param time The time to check, in millis
+	 * @return True if the schedule is enabled at the given time
+	 */
+	synchronized boolean isEnabled(long time) {
+		if(always)
+			return true;
+		long minute = time / MINUTE;
+		if(minute != cachedMinute) {
+			cachedEnabled = matches(time);
+			cachedMinute = minute;
+		}
+		return cachedEnabled;
+	}
+
+	private boolean matches(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		for(Pattern p : patterns)
+			if(p.matches(c))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param time The time to search from, in millis
+	 * @return The start of the first minute, at or after the given time, when the schedule is enabled or -1 if it's never enabled
+	 */
+	synchronized long getNextEnabled(long time) {
+		if(always)
+			return time;
+		if(cachedNext >= 0 && time >= cachedFrom && time <= cachedNext)
+			return cachedNext; // Nothing matches between the last search and the time found then
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		if(c.get(Calendar.SECOND) != 0 || c.get(Calendar.MILLISECOND) != 0) {
+			c.set(Calendar.SECOND, 0);
+			c.set(Calendar.MILLISECOND, 0);
+			c.add(Calendar.MINUTE, 1);
+		}
+		int limit = c.get(Calendar.YEAR) + MAX_SEARCH_YEARS;
+		long next = -1;
+		while(c.get(Calendar.YEAR) < limit) {
+			if(!anyMonth(c)) {
+				c.set(Calendar.DAY_OF_MONTH, 1);
+				c.set(Calendar.HOUR_OF_DAY, 0);
+				c.set(Calendar.MINUTE, 0);
+				c.add(Calendar.MONTH, 1);
+			} else if(!anyDay(c)) {
+				c.set(Calendar.HOUR_OF_DAY, 0);
+				c.set(Calendar.MINUTE, 0);
+				c.add(Calendar.DAY_OF_MONTH, 1);
+			} else if(!anyHour(c)) {
+				c.set(Calendar.MINUTE, 0);
+				c.add(Calendar.HOUR_OF_DAY, 1);
+			} else if(!matches(c.getTimeInMillis()))
+				c.add(Calendar.MINUTE, 1);
+			else {
+				next = c.getTimeInMillis();
+				break;
+			}
+		}
+		if(next >= 0) {
+			cachedFrom = time;
+			cachedNext = next;
+		}
+		return next;
+	}
+
+	private boolean anyMonth(Calendar c) {
+		int bit = 1 << (c.get(Calendar.MONTH) + 1);
+		for(Pattern p : patterns)
+			if((p.months & bit) != 0)
+				return true;
+		return false;
+	}
+
+	private boolean anyDay(Calendar c) {
+		int day = c.get(Calendar.DAY_OF_MONTH);
+		boolean last = day == c.getActualMaximum(Calendar.DAY_OF_MONTH);
+		int weekDay = 1 << (c.get(Calendar.DAY_OF_WEEK) - 1);
+		int month = 1 << (c.get(Calendar.MONTH) + 1);
+		for(Pattern p : patterns)
+			if((p.months & month) != 0 && (p.weekDays & weekDay) != 0 && ((p.days & (1 << day)) != 0 || (p.lastDay && last)))
+				return true;
+		return false;
+	}
+
+	private boolean anyHour(Calendar c) {
+		int bit = 1 << c.get(Calendar.HOUR_OF_DAY);
+		for(Pattern p : patterns)
+			if((p.hours & bit) != 0)
+				return true;
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+}
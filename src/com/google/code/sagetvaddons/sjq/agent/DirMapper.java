@@ -0,0 +1,124 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.SystemUtils;
+
+/**
+ * <p>The agent.mapdir settings compiled into a trie of path segments.</p>
+ * <p>
+ *    A path is remapped by the longest configured directory that it lives under; only the directory portion is
+ *    replaced, the rest of the path is kept exactly as given.  Both / and \ separate segments, so Windows paths
+ *    from the server can be mapped on any OS.  On Windows, segments are compared without regard to case but the
+ *    case of the path and of the mapped directory are preserved.  Instances are immutable.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class DirMapper {
+
+	static private final class Node {
+		private final Map<String, Node> children = new HashMap<String, Node>();
+		private String target = null;
+	}
+
+	private final Node root;
+	private final boolean ignoreCase;
+
+	/**
+	 * @param mappings The mappings; keys are the directories to map from, values the directories to map to
+	 */
+	DirMapper(Map<String, String> mappings) {
+		this(mappings, SystemUtils.IS_OS_WINDOWS);
+	}
+
+	DirMapper(Map<String, String> mappings, boolean ignoreCase) {
+		this.ignoreCase = ignoreCase;
+		root = new Node();
+		for(Map.Entry<String, String> e : mappings.entrySet()) {
+			String src = trimSeparators(e.getKey());
+			if(src.length() == 0)
+				continue;
+			Node n = root;
+			int start = 0;
+			while(start <= src.length()) {
+				int end = nextSeparator(src, start);
+				String seg = key(src.substring(start, end));
+				Node child = n.children.get(seg);
+				if(child == null) {
+					child = new Node();
+					n.children.put(seg, child);
+				}
+				n = child;
+				start = end + 1;
+			}
+			String target = trimSeparators(e.getValue());
+			// Mapping to a root dir (i.e. /) leaves nothing after trimming; the rest of the path supplies the separator
+			n.target = target;
+		}
+	}
+
+	/**
+	 * @param path The path to remap
+	 * @return The remapped path or the given path if no mapping applies to it
+	 */
+	String map(String path) {
+		if(path == null || root.children.isEmpty())
+			return path;
+		Node n = root;
+		String target = null;
+		int matchEnd = -1;
+		int start = 0;
+		int len = path.length();
+		while(start < len) {
+			int end = nextSeparator(path, start);
+			if(end == len)
+				break; // A mapping only applies to paths under the directory, never to the directory itself
+			n = n.children.get(key(path.substring(start, end)));
+			if(n == null)
+				break;
+			if(n.target != null) {
+				target = n.target;
+				matchEnd = end;
+			}
+			start = end + 1;
+		}
+		return target != null ? target + path.substring(matchEnd) : path;
+	}
+
+	private String key(String seg) {
+		return ignoreCase ? seg.toUpperCase() : seg;
+	}
+
+	static private int nextSeparator(String path, int start) {
+		for(int i = start; i < path.length(); ++i) {
+			char c = path.charAt(i);
+			if(c == '/' || c == '\\')
+				return i;
+		}
+		return path.length();
+	}
+
+	static private String trimSeparators(String path) {
+		int end = path.length();
+		while(end > 0 && (path.charAt(end - 1) == '/' || path.charAt(end - 1) == '\\'))
+			--end;
+		return path.substring(0, end);
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>Samples the host's CPU, memory and disk utilization in the background.</p>
+ * <p>
+ *    On Linux the figures come from /proc/stat, /proc/meminfo and /proc/diskstats; elsewhere the JVM's
+ *    OperatingSystemMXBean is used and disk utilization is not available.  Each figure is a percentage, smoothed
+ *    over the last few samples so a brief spike doesn't flip the agent between busy and idle, or -1 if it isn't
+ *    known (yet).  Load from anything on the host counts, not just SJQ tasks; that's the point: a box busy with a
+ *    local recording should stop taking new work.  A limit whose figure can't be measured on the host (e.g. agent.maxio
+ *    anywhere but Linux) is not enforced; a warning is logged once instead.
+ * </p>
+ * @author dbattams
+ *
+ */
+final public class HostLoad {
+	static private final Logger LOG = Logger.getLogger(HostLoad.class);
+
+	static private final long SAMPLE_INTERVAL = 5000L;
+	/**
+	 * Weight of the newest sample; with a 5s interval a change is mostly reflected within 15-20s
+	 */
+	static private final float ALPHA = 0.3F;
+	static private final File PROC_STAT = new File("/proc/stat");
+	static private final File PROC_MEMINFO = new File("/proc/meminfo");
+	static private final File PROC_DISKSTATS = new File("/proc/diskstats");
+	static private final File SYS_BLOCK = new File("/sys/block");
+
+	static private HostLoad INSTANCE = null;
+	synchronized static public final HostLoad get() {
+		if(INSTANCE == null)
+			INSTANCE = new HostLoad();
+		return INSTANCE;
+	}
+
+	private final boolean useProc;
+	private final OperatingSystemMXBean osBean;
+	private Method cpuLoadMethod;
+	private Method totalMemMethod;
+	private Method freeMemMethod;
+	private int samples;
+	private boolean cpuWarned;
+	private boolean memWarned;
+	private boolean ioWarned;
+
+	private long prevCpuTotal;
+	private long prevCpuIdle;
+	private Map<String, Long> prevIoTicks;
+	private long prevIoTime;
+
+	private volatile float cpu;
+	private volatile float mem;
+	private volatile float io;
+
+	private HostLoad() {
+		useProc = PROC_STAT.canRead() && PROC_MEMINFO.canRead();
+		osBean = ManagementFactory.getOperatingSystemMXBean();
+		if(!useProc) {
+			// The com.sun extension isn't on every JVM (and getSystemCpuLoad() only arrived in Java 7)
+			Class<?> ext = findExtension();
+			cpuLoadMethod = findMethod(ext, "getSystemCpuLoad");
+			totalMemMethod = findMethod(ext, "getTotalPhysicalMemorySize");
+			freeMemMethod = findMethod(ext, "getFreePhysicalMemorySize");
+		}
+		prevCpuTotal = prevCpuIdle = prevIoTime = -1;
+		prevIoTicks = new HashMap<String, Long>();
+		cpu = mem = io = -1;
+		samples = 0;
+		cpuWarned = memWarned = ioWarned = false;
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true) {
+					try {
+						sample();
+					} catch(Throwable e) {
+						LOG.error("Host load sample failed", e);
+					}
+					try {
+						Thread.sleep(SAMPLE_INTERVAL);
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "SJQ4HostLoad");
+		t.setDaemon(true);
+		t.start();
+		LOG.info("Sampling host load from " + (useProc ? "/proc" : "the JVM"));
+	}
+
+	/**
+	 * @return The public com.sun.management.OperatingSystemMXBean interface if the JVM's bean implements it or null if not
+	 */
+	private Class<?> findExtension() {
+		try {
+			Class<?> ext = Class.forName("com.sun.management.OperatingSystemMXBean");
+			if(ext.isInstance(osBean))
+				return ext;
+		} catch(ClassNotFoundException e) {
+			LOG.debug("com.sun.management.OperatingSystemMXBean is not available", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Look the method up on the public interface; the bean's own class isn't public (or exported on Java 9+) so its methods can't be invoked
+	 */
+	static private Method findMethod(Class<?> ext, String name) {
+		if(ext == null)
+			return null;
+		try {
+			return ext.getMethod(name);
+		} catch(NoSuchMethodException e) {
+			LOG.debug("OperatingSystemMXBean." + name + "() is not available", e);
+			return null;
+		}
+	}
+
+	private void sample() throws IOException {
+		if(useProc) {
+			cpu = smooth(cpu, sampleProcCpu());
+			mem = smooth(mem, sampleProcMem());
+			io = smooth(io, sampleProcIo());
+		} else {
+			cpu = smooth(cpu, sampleBeanCpu());
+			mem = smooth(mem, sampleBeanMem());
+		}
+		if(LOG.isDebugEnabled())
+			LOG.debug("Host load: cpu=" + cpu + "% mem=" + mem + "% io=" + io + "%");
+		// The CPU and disk figures need two samples before they're known
+		if(++samples >= 2) {
+			Config cfg = Config.get();
+			cpuWarned = warnUnknown(cpuWarned, cpu, cfg.getMaxCpu(), "agent.maxcpu", "CPU");
+			memWarned = warnUnknown(memWarned, mem, cfg.getMaxMem(), "agent.maxmem", "memory");
+			ioWarned = warnUnknown(ioWarned, io, cfg.getMaxIo(), "agent.maxio", "disk");
+		}
+	}
+
+	/**
+	 * Warn, once, that a configured limit can't be enforced because the figure it's checked against isn't available
+	 * @return True if the limit is set but can't be measured (i.e. the warning has been logged)
+	 */
+	static private boolean warnUnknown(boolean warned, float value, int max, String opt, String what) {
+		if(max <= 0 || value >= 0)
+			return false;
+		if(!warned)
+			LOG.warn(opt + " is set to " + max + "% but host " + what + " utilization can't be measured on this host; the limit will not be enforced");
+		return true;
+	}
+
+	static private float smooth(float current, float sample) {
+		if(sample < 0)
+			return current;
+		if(current < 0)
+			return sample;
+		return current + ALPHA * (sample - current);
+	}
+
+	private float sampleProcCpu() throws IOException {
+		BufferedReader r = new BufferedReader(new FileReader(PROC_STAT));
+		try {
+			String line = r.readLine();
+			if(line == null || !line.startsWith("cpu "))
+				return -1;
+			String[] f = line.trim().split("\\s+");
+			long total = 0;
+			for(int i = 1; i < f.length; ++i)
+				total += Long.parseLong(f[i]);
+			// idle + iowait; a box waiting on disk isn't busy as far as the CPU goes, that shows up in the I/O figure
+			long idle = Long.parseLong(f[4]) + (f.length > 5 ? Long.parseLong(f[5]) : 0);
+			float pct = -1;
+			if(prevCpuTotal >= 0 && total > prevCpuTotal)
+				pct = 100F * (1F - (float)(idle - prevCpuIdle) / (total - prevCpuTotal));
+			prevCpuTotal = total;
+			prevCpuIdle = idle;
+			return pct;
+		} finally {
+			r.close();
+		}
+	}
+
+	private float sampleProcMem() throws IOException {
+		long total = -1, avail = -1, free = 0, buffers = 0, cached = 0;
+		BufferedReader r = new BufferedReader(new FileReader(PROC_MEMINFO));
+		try {
+			String line;
+			while((line = r.readLine()) != null) {
+				String[] f = line.split("[:\\s]+");
+				if(f.length < 2)
+					continue;
+				if(f[0].equals("MemTotal"))
+					total = Long.parseLong(f[1]);
+				else if(f[0].equals("MemAvailable"))
+					avail = Long.parseLong(f[1]);
+				else if(f[0].equals("MemFree"))
+					free = Long.parseLong(f[1]);
+				else if(f[0].equals("Buffers"))
+					buffers = Long.parseLong(f[1]);
+				else if(f[0].equals("Cached"))
+					cached = Long.parseLong(f[1]);
+			}
+		} finally {
+			r.close();
+		}
+		if(total <= 0)
+			return -1;
+		if(avail < 0) // Older kernels don't report MemAvailable
+			avail = free + buffers + cached;
+		return 100F * (total - avail) / total;
+	}
+
+	/**
+	 * @return The utilization of the busiest disk over the last interval
+	 */
+	private float sampleProcIo() throws IOException {
+		if(!PROC_DISKSTATS.canRead())
+			return -1;
+		long now = System.currentTimeMillis();
+		Map<String, Long> ticks = new HashMap<String, Long>();
+		BufferedReader r = new BufferedReader(new FileReader(PROC_DISKSTATS));
+		try {
+			String line;
+			while((line = r.readLine()) != null) {
+				String[] f = line.trim().split("\\s+");
+				// Only whole disks (i.e. those listed in /sys/block) and not partitions, ram disks or loop devices
+				if(f.length < 13 || f[2].startsWith("loop") || f[2].startsWith("ram") || !new File(SYS_BLOCK, f[2]).exists())
+					continue;
+				ticks.put(f[2], Long.parseLong(f[12])); // Millis spent doing I/O
+			}
+		} finally {
+			r.close();
+		}
+		float pct = -1;
+		if(prevIoTime >= 0 && now > prevIoTime) {
+			long busiest = 0;
+			for(Map.Entry<String, Long> e : ticks.entrySet()) {
+				Long prev = prevIoTicks.get(e.getKey());
+				if(prev != null && e.getValue() >= prev)
+					busiest = Math.max(busiest, e.getValue() - prev);
+			}
+			pct = Math.min(100F, 100F * busiest / (now - prevIoTime));
+		}
+		prevIoTicks = ticks;
+		prevIoTime = now;
+		return pct;
+	}
+
+	private float sampleBeanCpu() {
+		if(cpuLoadMethod != null) {
+			try {
+				double load = ((Number)cpuLoadMethod.invoke(osBean)).doubleValue();
+				if(load >= 0)
+					return (float)(load * 100D);
+			} catch(Exception e) {
+				LOG.debug("getSystemCpuLoad() failed", e);
+			}
+		}
+		double avg = osBean.getSystemLoadAverage();
+		if(avg < 0)
+			return -1;
+		return (float)Math.min(100D, 100D * avg / osBean.getAvailableProcessors());
+	}
+
+	private float sampleBeanMem() {
+		if(totalMemMethod == null || freeMemMethod == null)
+			return -1;
+		try {
+			long total = ((Number)totalMemMethod.invoke(osBean)).longValue();
+			long free = ((Number)freeMemMethod.invoke(osBean)).longValue();
+			return total > 0 ? 100F * (total - free) / total : -1;
+		} catch(Exception e) {
+			LOG.debug("Physical memory figures not available", e);
+			return -1;
+		}
+	}
+
+	/**
+	 * @return Smoothed CPU utilization of the host, as a percentage, or -1 if not known
+	 */
+	public float getCpu() {
+		return cpu;
+	}
+
+	/**
+	 * @return Smoothed memory utilization of the host, as a percentage, or -1 if not known
+	 */
+	public float getMem() {
+		return mem;
+	}
+
+	/**
+	 * @return Smoothed utilization of the host's busiest disk, as a percentage, or -1 if not known
+	 */
+	public float getIo() {
+		return io;
+	}
+
+	/**
+	 * Check the host's load against the agent.maxcpu, agent.maxmem and agent.maxio settings
+	 * @return A description of the first limit exceeded or null if the host can take on more work
+	 */
+	public String getOverload() {
+		Config cfg = Config.get();
+		if(exceeds(cpu, cfg.getMaxCpu()))
+			return "Host CPU is " + Math.round(cpu) + "% busy [max=" + cfg.getMaxCpu() + "%]";
+		if(exceeds(mem, cfg.getMaxMem()))
+			return "Host memory is " + Math.round(mem) + "% used [max=" + cfg.getMaxMem() + "%]";
+		if(exceeds(io, cfg.getMaxIo()))
+			return "Host disk is " + Math.round(io) + "% busy [max=" + cfg.getMaxIo() + "%]";
+		return null;
+	}
+
+	static private boolean exceeds(float value, int max) {
+		return max > 0 && value >= 0 && value > max;
+	}
+}
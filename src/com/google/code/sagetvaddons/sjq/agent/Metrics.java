@@ -0,0 +1,357 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>The agent's runtime metrics, written out in the Prometheus text exposition format.</p>
+ * <p>
+ *    Metrics are registered by name; registering a name again returns the metric already registered under it, so
+ *    classes can simply keep their metrics in static fields.  Counters and histograms have an optional set of labels
+ *    and a series is created for each distinct set of label values the first time it's used, so labels must only
+ *    ever take a small, fixed set of values (task types, command names, servers, etc.).
+ * </p>
+ * @author dbattams
+ *
+ */
+public final class Metrics {
+	static private final String PREFIX = "sjq_agent_";
+
+	/**
+	 * Default histogram buckets, in seconds; from quick network round trips up to multi hour transcodes
+	 */
+	static public final double[] TIME_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300, 900, 1800, 3600, 7200, 14400};
+
+	static private Metrics INSTANCE = null;
+	synchronized static public final Metrics get() {
+		if(INSTANCE == null)
+			INSTANCE = new Metrics();
+		return INSTANCE;
+	}
+
+	/**
+	 * Supplies the current value of a gauge each time the metrics are written
+	 */
+	static public interface Gauge {
+		/**
+		 * @return The gauge's current value
+		 */
+		public double getValue();
+	}
+
+	private final Map<String, Family> families;
+
+	private Metrics() {
+		families = new LinkedHashMap<String, Family>();
+	}
+
+	/**
+	 * Register a counter
+	 * @param name The metric name, without the sjq_agent_ prefix; by convention counters end in _total
+	 * @param help A description of the metric
+	 * @param labels The names of the counter's labels
+	 * @return The counter
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter)register(new Counter(PREFIX + name, help, labels));
+	}
+
+	/**
+	 * Register a histogram
+	 * @param name The metric name, without the sjq_agent_ prefix
+	 * @param help A description of the metric
+	 * @param buckets The upper bounds of the buckets, in increasing order; the +Inf bucket is implied
+	 * @param labels The names of the histogram's labels
+	 * @return The histogram
+	 */
+	public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+		return (Histogram)register(new Histogram(PREFIX + name, help, buckets, labels));
+	}
+
+	/**
+	 * Register a gauge; a gauge registered under a name already in use is ignored
+	 * @param name The metric name, without the sjq_agent_ prefix
+	 * @param help A description of the metric
+	 * @param gauge The source of the gauge's value
+	 */
+	public void gauge(String name, String help, Gauge gauge) {
+		register(new GaugeFamily(PREFIX + name, help, gauge));
+	}
+
+	synchronized private Family register(Family f) {
+		Family existing = families.get(f.name);
+		if(existing != null) {
+			if(existing.getClass() != f.getClass())
+				throw new IllegalArgumentException("Metric '" + f.name + "' is already registered as a " + existing.type);
+			return existing;
+		}
+		families.put(f.name, f);
+		return f;
+	}
+
+	/**
+	 * Write every metric in the Prometheus text exposition format (version 0.0.4)
+	 * @param w The destination
+	 * @throws IOException On any error writing to the destination
+	 */
+	public void write(Writer w) throws IOException {
+		List<Family> snapshot;
+		synchronized(this) {
+			snapshot = new ArrayList<Family>(families.values());
+		}
+		for(Family f : snapshot) {
+			w.write("# HELP " + f.name + " " + f.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+			w.write("# TYPE " + f.name + " " + f.type + "\n");
+			f.write(w);
+		}
+		w.flush();
+	}
+
+	static private String format(double v) {
+		if(Double.isNaN(v))
+			return "NaN";
+		if(Double.isInfinite(v))
+			return v > 0 ? "+Inf" : "-Inf";
+		if(v == Math.rint(v) && Math.abs(v) < 1e15)
+			return String.valueOf((long)v);
+		return String.valueOf(v);
+	}
+
+	static private String formatLabels(String[] names, List<String> values, String extraName, String extraValue) {
+		if(names.length == 0 && extraName == null)
+			return "";
+		StringBuilder sb = new StringBuilder("{");
+		for(int i = 0; i < names.length; ++i) {
+			if(i > 0)
+				sb.append(',');
+			appendLabel(sb, names[i], values.get(i));
+		}
+		if(extraName != null) {
+			if(names.length > 0)
+				sb.append(',');
+			appendLabel(sb, extraName, extraValue);
+		}
+		return sb.append('}').toString();
+	}
+
+	static private void appendLabel(StringBuilder sb, String name, String value) {
+		sb.append(name).append("=\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+	}
+
+	static private abstract class Family {
+		final String name;
+		final String help;
+		final String type;
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+
+		abstract void write(Writer w) throws IOException;
+	}
+
+	/**
+	 * A metric family whose series are keyed by their label values
+	 * @param <T> The type of a single series
+	 */
+	static private abstract class Labelled<T> extends Family {
+		final String[] labels;
+		private final Map<List<String>, T> series;
+
+		Labelled(String name, String help, String type, String[] labels) {
+			super(name, help, type);
+			this.labels = labels;
+			series = new TreeMap<List<String>, T>(new Comparator<List<String>>() {
+				@Override
+				public int compare(List<String> o1, List<String> o2) {
+					for(int i = 0; i < o1.size(); ++i) {
+						int c = o1.get(i).compareTo(o2.get(i));
+						if(c != 0)
+							return c;
+					}
+					return 0;
+				}
+			});
+		}
+
+		synchronized T series(String[] values) {
+			if(values.length != labels.length)
+				throw new IllegalArgumentException("Metric '" + name + "' has labels " + Arrays.toString(labels) + " but was given " + Arrays.toString(values));
+			List<String> key = Arrays.asList(values);
+			T s = series.get(key);
+			if(s == null) {
+				s = newSeries();
+				series.put(new ArrayList<String>(key), s);
+			}
+			return s;
+		}
+
+		synchronized Map<List<String>, T> snapshot() {
+			return new LinkedHashMap<List<String>, T>(series);
+		}
+
+		abstract T newSeries();
+	}
+
+	/**
+	 * A value that only ever goes up
+	 */
+	static public final class Counter extends Labelled<double[]> {
+		private Counter(String name, String help, String[] labels) {
+			super(name, help, "counter", labels);
+		}
+
+		@Override
+		double[] newSeries() {
+			return new double[1];
+		}
+
+		/**
+		 * Add one to the counter
+		 * @param labels The label values, in the order the labels were registered
+		 */
+		public void inc(String... labels) {
+			add(1, labels);
+		}
+
+		/**
+		 * Add to the counter
+		 * @param amount The amount to add; must not be negative
+		 * @param labels The label values, in the order the labels were registered
+		 */
+		public void add(double amount, String... labels) {
+			double[] s = series(labels);
+			synchronized(s) {
+				s[0] += amount;
+			}
+		}
+
+		@Override
+		void write(Writer w) throws IOException {
+			for(Map.Entry<List<String>, double[]> e : snapshot().entrySet()) {
+				double v;
+				synchronized(e.getValue()) {
+					v = e.getValue()[0];
+				}
+				w.write(name + formatLabels(labels, e.getKey(), null, null) + " " + format(v) + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Counts observations, such as durations, into buckets
+	 */
+	static public final class Histogram extends Labelled<Histogram.Series> {
+		static private final class Series {
+			private final long[] counts;
+			private double sum;
+			private long count;
+
+			private Series(int buckets) {
+				counts = new long[buckets];
+				sum = 0;
+				count = 0;
+			}
+		}
+
+		private final double[] buckets;
+
+		private Histogram(String name, String help, double[] buckets, String[] labels) {
+			super(name, help, "histogram", labels);
+			this.buckets = buckets.clone();
+		}
+
+		@Override
+		Series newSeries() {
+			return new Series(buckets.length);
+		}
+
+		/**
+		 * Record an observation
+		 * @param value The observed value; durations are observed in seconds
+		 * @param labels The label values, in the order the labels were registered
+		 */
+		public void observe(double value, String... labels) {
+			Series s = series(labels);
+			synchronized(s) {
+				for(int i = 0; i < buckets.length; ++i)
+					if(value <= buckets[i]) {
+						++s.counts[i];
+						break;
+					}
+				s.sum += value;
+				++s.count;
+			}
+		}
+
+		/**
+		 * Record the time elapsed since the given start time
+		 * @param startMillis The start time, as returned by System.currentTimeMillis()
+		 * @param labels The label values, in the order the labels were registered
+		 */
+		public void observeSince(long startMillis, String... labels) {
+			observe((System.currentTimeMillis() - startMillis) / 1000.0, labels);
+		}
+
+		@Override
+		void write(Writer w) throws IOException {
+			for(Map.Entry<List<String>, Series> e : snapshot().entrySet()) {
+				long[] counts;
+				double sum;
+				long count;
+				Series s = e.getValue();
+				synchronized(s) {
+					counts = s.counts.clone();
+					sum = s.sum;
+					count = s.count;
+				}
+				long cumulative = 0;
+				for(int i = 0; i < buckets.length; ++i) {
+					cumulative += counts[i];
+					w.write(name + "_bucket" + formatLabels(labels, e.getKey(), "le", format(buckets[i])) + " " + cumulative + "\n");
+				}
+				w.write(name + "_bucket" + formatLabels(labels, e.getKey(), "le", "+Inf") + " " + count + "\n");
+				w.write(name + "_sum" + formatLabels(labels, e.getKey(), null, null) + " " + format(sum) + "\n");
+				w.write(name + "_count" + formatLabels(labels, e.getKey(), null, null) + " " + count + "\n");
+			}
+		}
+	}
+
+	static private final class GaugeFamily extends Family {
+		private final Gauge gauge;
+
+		private GaugeFamily(String name, String help, Gauge gauge) {
+			super(name, help, "gauge");
+			this.gauge = gauge;
+		}
+
+		@Override
+		void write(Writer w) throws IOException {
+			w.write(name + " " + format(gauge.getValue()) + "\n");
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>Serves the agent's metrics over HTTP at /metrics, for Prometheus (or anything else) to scrape.</p>
+ * <p>
+ *    Uses the HTTP server built into the JRE so no extra libraries are needed.  The endpoint is only started when
+ *    agent.metricsport is set and only listens on agent.metricsaddress, which is the loopback address by default.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class MetricsEndpoint {
+	static private final Logger LOG = Logger.getLogger(MetricsEndpoint.class);
+
+	static private final String PATH = "/metrics";
+	static private final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * Start the endpoint, if it's configured
+	 * @return The endpoint or null if it's disabled or failed to start
+	 */
+	static MetricsEndpoint start() {
+		Config cfg = Config.get();
+		int port = cfg.getMetricsPort();
+		if(port <= 0)
+			return null;
+		try {
+			return new MetricsEndpoint(cfg.getMetricsAddress(), port);
+		} catch(IOException e) {
+			LOG.error("Unable to start metrics endpoint on " + cfg.getMetricsAddress() + ":" + port, e);
+			return null;
+		}
+	}
+
+	private final HttpServer srv;
+	private final ExecutorService executor;
+
+	private MetricsEndpoint(String address, int port) throws IOException {
+		srv = HttpServer.create(new InetSocketAddress(address, port), 0);
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SJQ4Metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		srv.setExecutor(executor);
+		srv.createContext(PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange ex) throws IOException {
+				try {
+					if(!PATH.equals(ex.getRequestURI().getPath())) {
+						ex.sendResponseHeaders(404, -1);
+						return;
+					}
+					if(!"GET".equals(ex.getRequestMethod()) && !"HEAD".equals(ex.getRequestMethod())) {
+						ex.getResponseHeaders().set("Allow", "GET, HEAD");
+						ex.sendResponseHeaders(405, -1);
+						return;
+					}
+					StringWriter text = new StringWriter();
+					Metrics.get().write(text);
+					byte[] body = text.toString().getBytes("UTF-8");
+					ex.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+					if("HEAD".equals(ex.getRequestMethod())) {
+						ex.sendResponseHeaders(200, -1);
+						return;
+					}
+					ex.sendResponseHeaders(200, body.length);
+					OutputStream out = ex.getResponseBody();
+					out.write(body);
+					out.close();
+				} catch(RuntimeException e) {
+					LOG.error("Failed to write metrics", e);
+					ex.sendResponseHeaders(500, -1);
+				} finally {
+					ex.close();
+				}
+			}
+		});
+		srv.start();
+		LOG.info("Serving metrics on http://" + address + ":" + port + PATH);
+	}
+
+	/**
+	 * Stop serving metrics
+	 */
+	void stop() {
+		srv.stop(0);
+		executor.shutdownNow();
+	}
+}
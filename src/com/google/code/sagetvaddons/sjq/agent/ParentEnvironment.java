@@ -0,0 +1,175 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.exec.environment.EnvironmentUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * <p>A snapshot of the agent's own environment, used as the base environment of every task process.</p>
+ * <p>
+ *    The JVM's environment can't change once it has started, so it's only read (and copied) once.  Each task gets
+ *    an overlay: a map that reads through to the snapshot and only stores the task's own variables, so the snapshot
+ *    is never copied again.
+ * </p>
+ * <p>
+ *    On Windows variable names are case insensitive, so both maps are too; a task variable named <code>Path</code>
+ *    replaces the inherited <code>PATH</code> rather than adding a second entry to the child's environment.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class ParentEnvironment {
+	static private final Logger LOG = Logger.getLogger(ParentEnvironment.class);
+
+	static private Map<String, String> snapshot = null;
+
+	/**
+	 * @return The current snapshot of the agent's environment, reading it first if needed; the map is read only
+	 */
+	synchronized static Map<String, String> get() {
+		if(snapshot == null) {
+			Map<String, String> env = newMap();
+			try {
+				Map<?, ?> procEnv = EnvironmentUtils.getProcEnvironment();
+				for(Map.Entry<?, ?> e : procEnv.entrySet())
+					env.put(e.getKey().toString(), e.getValue().toString());
+			} catch(IOException e) {
+				LOG.warn("IOError grabbing parent env; using empty env instead!", e);
+			}
+			snapshot = Collections.unmodifiableMap(env);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return An empty map that compares variable names the way the OS does
+	 */
+	static private Map<String, String> newMap() {
+		if(SystemUtils.IS_OS_WINDOWS)
+			return new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		return new HashMap<String, String>();
+	}
+
+	/**
+	 * @param vars The variables to add to (or replace in) the agent's environment
+	 * @return A new environment for a task process
+	 */
+	static Map<String, String> overlay(Map<String, String> vars) {
+		Overlay env = new Overlay(get());
+		if(vars != null)
+			env.putAll(vars);
+		return env;
+	}
+
+	/**
+	 * A map that reads through to a base map; writes only ever go to the overlay's own map
+	 */
+	static private final class Overlay extends AbstractMap<String, String> {
+		private final Map<String, String> base;
+		private final Map<String, String> vars;
+
+		private Overlay(Map<String, String> base) {
+			this.base = base;
+			vars = newMap();
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return vars.containsKey(key) || base.containsKey(key);
+		}
+
+		@Override
+		public String get(Object key) {
+			String val = vars.get(key);
+			return val != null || vars.containsKey(key) ? val : base.get(key);
+		}
+
+		@Override
+		public String put(String key, String value) {
+			String prev = get(key);
+			vars.put(key, value);
+			return prev;
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return new AbstractSet<Map.Entry<String, String>>() {
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator() {
+					return new Iterator<Map.Entry<String, String>>() {
+						private final Iterator<Map.Entry<String, String>> own = vars.entrySet().iterator();
+						private final Iterator<Map.Entry<String, String>> inherited = base.entrySet().iterator();
+						private Map.Entry<String, String> next = advance();
+
+						private Map.Entry<String, String> advance() {
+							if(own.hasNext())
+								return own.next();
+							while(inherited.hasNext()) {
+								Map.Entry<String, String> e = inherited.next();
+								if(!vars.containsKey(e.getKey()))
+									return e;
+							}
+							return null;
+						}
+
+						@Override
+						public boolean hasNext() {
+							return next != null;
+						}
+
+						@Override
+						public Map.Entry<String, String> next() {
+							if(next == null)
+								throw new NoSuchElementException();
+							Map.Entry<String, String> e = next;
+							next = advance();
+							return e;
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					int size = base.size();
+					for(String k : vars.keySet())
+						if(!base.containsKey(k))
+							++size;
+					return size;
+				}
+			};
+		}
+	}
+
+	private ParentEnvironment() {}
+}
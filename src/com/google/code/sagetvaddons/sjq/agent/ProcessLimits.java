@@ -0,0 +1,304 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * <p>The scheduling priority, CPU affinity and cgroup limits to start a task's processes with (Linux only).</p>
+ * <p>
+ *    Limits are applied by starting the exe through the standard tools, each of which execs the next so the task's
+ *    process keeps the same pid: <code>sh</code> (to join the cgroup), <code>nice</code>, <code>ionice</code> and
+ *    <code>taskset</code>.  A tool that isn't installed is skipped with a warning, as are all limits on other OSes.
+ *    The cgroup limits need a cgroup v2 directory that the agent's user can write to (agent.cgroup); each task gets
+ *    its own child cgroup, removed again when the task's process exits.  If the process can't join its cgroup (e.g. the
+ *    agent's user can't move processes into it) then the exe is started anyway, without the CPU and memory limits, and
+ *    a warning is written to the task's output and the agent's log.
+ * </p>
+ * <p>
+ *    When a task's CPU or memory limits are changed in the props file, the cgroups of its running processes are
+ *    updated right away.  The other limits are only applied when a process starts, so changes to them only affect
+ *    processes started after the change, as do limits added to a task whose running processes were started without a cgroup.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class ProcessLimits {
+	static private final Logger LOG = Logger.getLogger(ProcessLimits.class);
+
+	static private final String[] BIN_DIRS = {"/usr/bin", "/bin", "/usr/sbin", "/sbin"};
+	static private final int CPU_PERIOD = 100000;
+	/**
+	 * Join the cgroup then exec the exe; if the cgroup can't be joined then the exe is still started, without the limits
+	 */
+	static private final String JOIN_CGROUP = "echo $$ 2>/dev/null >\"$0/cgroup.procs\" || echo \"SJQ4: unable to join cgroup $0; running without CPU/memory limits\" >&2; exec \"$@\"";
+
+	/**
+	 * The cgroups of the processes currently running, mapped to the id of the task each belongs to
+	 */
+	static private final Map<File, String> RUNNING = new ConcurrentHashMap<File, String>();
+
+	/**
+	 * Apply changed CPU and memory limits to the running processes of the tasks that changed
+	 * @param diff The changes to the props file
+	 */
+	static void update(Config.Diff diff) {
+		for(Map.Entry<File, String> e : RUNNING.entrySet()) {
+			String id = e.getValue();
+			if(!diff.getChangedTasks().contains(id) && !diff.getRemovedTasks().contains(id))
+				continue;
+			ProcessLimits limits = Config.get().getProcessLimits(id);
+			File dir = e.getKey();
+			try {
+				writeLimits(dir, limits != null ? limits.cpuQuota : 0, limits != null ? limits.memLimit : 0, true);
+				LOG.info("Updated CPU/memory limits of running task '" + id + "' [" + dir.getAbsolutePath() + "]");
+			} catch(IOException x) {
+				if(dir.isDirectory())
+					LOG.error("Unable to update CPU/memory limits of running task '" + id + "' [" + dir.getAbsolutePath() + "]", x);
+			}
+		}
+	}
+
+	/**
+	 * @param clear If true then a zero quota or limit is written as no limit, otherwise it's left untouched
+	 */
+	static private void writeLimits(File dir, int cpuQuota, long memLimit, boolean clear) throws IOException {
+		if(cpuQuota > 0)
+			FileUtils.writeStringToFile(new File(dir, "cpu.max"), ((long)cpuQuota * CPU_PERIOD / 100) + " " + CPU_PERIOD);
+		else if(clear)
+			FileUtils.writeStringToFile(new File(dir, "cpu.max"), "max " + CPU_PERIOD);
+		if(memLimit > 0)
+			FileUtils.writeStringToFile(new File(dir, "memory.max"), String.valueOf(memLimit * 1024L * 1024L));
+		else if(clear)
+			FileUtils.writeStringToFile(new File(dir, "memory.max"), "max");
+	}
+
+	private final String taskId;
+	private Integer nice;
+	private String ionice;
+	private String affinity;
+	private int cpuQuota;
+	private long memLimit;
+
+	/**
+	 * @param taskId The id of the task the limits are for
+	 */
+	ProcessLimits(String taskId) {
+		this.taskId = taskId;
+		nice = null;
+		ionice = null;
+		affinity = null;
+		cpuQuota = 0;
+		memLimit = 0;
+	}
+
+	/**
+	 * @param nice The nice level, -20 (highest priority) to 19 (lowest)
+	 */
+	void setNice(int nice) {
+		if(nice < -20 || nice > 19)
+			throw new IllegalArgumentException("Nice level must be between -20 and 19 [" + nice + "]");
+		this.nice = nice;
+	}
+
+	/**
+	 * @param ionice The I/O scheduling class (1 = realtime, 2 = best effort, 3 = idle) optionally followed by a colon and the level within the class (0-7)
+	 */
+	void setIonice(String ionice) {
+		if(!ionice.matches("[1-3](:[0-7])?"))
+			throw new IllegalArgumentException("I/O priority must be class[:level] [" + ionice + "]");
+		this.ionice = ionice;
+	}
+
+	/**
+	 * @param affinity The CPUs the task may run on, as a taskset CPU list (i.e. 2-7 or 0,2,4)
+	 */
+	void setAffinity(String affinity) {
+		if(!affinity.matches("\\d+(-\\d+)?(,\\d+(-\\d+)?)*"))
+			throw new IllegalArgumentException("CPU affinity must be a list of CPUs and CPU ranges [" + affinity + "]");
+		this.affinity = affinity;
+	}
+
+	/**
+	 * @param cpuQuota The max CPU time for the task, as a percentage of one CPU (i.e. 250 is two and a half CPUs); zero for no limit
+	 */
+	void setCpuQuota(int cpuQuota) {
+		if(cpuQuota < 0)
+			throw new IllegalArgumentException("CPU quota cannot be negative [" + cpuQuota + "]");
+		this.cpuQuota = cpuQuota;
+	}
+
+	/**
+	 * @param memLimit The max memory for the task, in MB; zero for no limit
+	 */
+	void setMemLimit(long memLimit) {
+		if(memLimit < 0)
+			throw new IllegalArgumentException("Memory limit cannot be negative [" + memLimit + "]");
+		this.memLimit = memLimit;
+	}
+
+	/**
+	 * Prepare the command line that starts an exe with these limits
+	 * @param name A name for the task; used to name its cgroup
+	 * @param exe The exe to start
+	 * @param args The exe's arguments
+	 * @return The launch, which must be closed once the process has exited
+	 */
+	Launch prepare(String name, String exe, String[] args) {
+		List<String> cmd = new ArrayList<String>();
+		File cgroup = null;
+		if(SystemUtils.IS_OS_LINUX) {
+			if(cpuQuota > 0 || memLimit > 0) {
+				cgroup = createCgroup(name);
+				if(cgroup != null) {
+					cmd.add(findTool("sh"));
+					cmd.add("-c");
+					cmd.add(JOIN_CGROUP);
+					cmd.add(cgroup.getAbsolutePath());
+				}
+			}
+			if(nice != null)
+				addTool(cmd, "nice", "-n", nice.toString());
+			if(ionice != null) {
+				String[] parts = ionice.split(":");
+				if(parts.length > 1)
+					addTool(cmd, "ionice", "-c", parts[0], "-n", parts[1]);
+				else
+					addTool(cmd, "ionice", "-c", parts[0]);
+			}
+			if(affinity != null)
+				addTool(cmd, "taskset", "-c", affinity);
+		} else
+			LOG.warn("Process limits are only supported on Linux; starting '" + name + "' without them");
+		if(cmd.isEmpty())
+			return new Launch(exe, args, null);
+		cmd.add(exe);
+		for(String arg : args)
+			cmd.add(arg);
+		return new Launch(cmd.get(0), cmd.subList(1, cmd.size()).toArray(new String[cmd.size() - 1]), cgroup);
+	}
+
+	static private void addTool(List<String> cmd, String tool, String... args) {
+		String path = findTool(tool);
+		if(path == null) {
+			LOG.warn("'" + tool + "' is not installed; skipping its process limit");
+			return;
+		}
+		cmd.add(path);
+		for(String arg : args)
+			cmd.add(arg);
+	}
+
+	static private String findTool(String tool) {
+		for(String dir : BIN_DIRS) {
+			File f = new File(dir, tool);
+			if(f.canExecute())
+				return f.getAbsolutePath();
+		}
+		return null;
+	}
+
+	private File createCgroup(String name) {
+		String base = Config.get().getCgroup();
+		if(base == null || base.length() == 0) {
+			LOG.warn("Task '" + name + "' has CPU/memory limits but agent.cgroup is not set; starting it without them");
+			return null;
+		}
+		if(findTool("sh") == null) {
+			LOG.warn("'sh' is not installed; starting '" + name + "' without CPU/memory limits");
+			return null;
+		}
+		File dir = new File(base, name.replaceAll("[^A-Za-z0-9_.-]", "_"));
+		try {
+			if(!dir.isDirectory() && !dir.mkdir())
+				throw new IOException("Unable to create cgroup '" + dir.getAbsolutePath() + "'");
+			writeLimits(dir, cpuQuota, memLimit, false);
+			RUNNING.put(dir, taskId);
+			return dir;
+		} catch(IOException e) {
+			LOG.error("Unable to set up cgroup for '" + name + "'; starting it without CPU/memory limits (are the cpu and memory controllers enabled in " + base + "/cgroup.subtree_control?)", e);
+			removeCgroup(dir);
+			return null;
+		}
+	}
+
+	/**
+	 * @return False if nothing ever ran in the cgroup, i.e. its process failed to join it
+	 */
+	static private boolean wasUsed(File dir) {
+		try {
+			for(Object line : FileUtils.readLines(new File(dir, "cpu.stat"))) {
+				String[] f = line.toString().trim().split("\\s+");
+				if(f.length == 2 && f[0].equals("usage_usec"))
+					return Long.parseLong(f[1]) > 0;
+			}
+		} catch(IOException e) {
+			LOG.debug("Unable to read usage of cgroup '" + dir.getAbsolutePath() + "'", e);
+		} catch(NumberFormatException e) {
+			LOG.debug("Unable to read usage of cgroup '" + dir.getAbsolutePath() + "'", e);
+		}
+		return true;
+	}
+
+	static private void removeCgroup(File dir) {
+		if(dir.isDirectory() && !dir.delete())
+			LOG.warn("Unable to remove cgroup '" + dir.getAbsolutePath() + "'; something the task started may still be running in it");
+	}
+
+	/**
+	 * An exe and arguments ready to be started with the limits applied
+	 */
+	static final class Launch {
+		private final String exe;
+		private final String[] args;
+		private final File cgroup;
+
+		private Launch(String exe, String[] args, File cgroup) {
+			this.exe = exe;
+			this.args = args;
+			this.cgroup = cgroup;
+		}
+
+		String getExe() {
+			return exe;
+		}
+
+		String[] getArgs() {
+			return args;
+		}
+
+		/**
+		 * Release anything created for the launch; call once the process has exited
+		 */
+		void close() {
+			if(cgroup != null) {
+				RUNNING.remove(cgroup);
+				if(!wasUsed(cgroup))
+					LOG.warn("Process never joined cgroup '" + cgroup.getAbsolutePath() + "'; it ran without its CPU/memory limits");
+				removeCgroup(cgroup);
+			}
+		}
+	}
+}
@@ -15,13 +15,10 @@
  */
 package com.google.code.sagetvaddons.sjq.agent;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Map;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
@@ -29,16 +26,13 @@ import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.exec.Executor;
 import org.apache.commons.exec.PumpStreamHandler;
-import org.apache.commons.exec.environment.EnvironmentUtils;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.SystemUtils;
 import org.apache.log4j.Logger;
 
-import sagex.SageAPI;
-
 import com.google.code.sagetvaddons.sjq.agent.network.ServerClient;
+import com.google.code.sagetvaddons.sjq.agent.network.ServerClientPool;
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
 import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
 import com.google.code.sagetvaddons.sjq.shared.QueuedTask.State;
 
@@ -49,6 +43,10 @@ import com.google.code.sagetvaddons.sjq.shared.QueuedTask.State;
 final public class ProcessRunner implements Runnable {
 	static private final Logger LOG = Logger.getLogger(ProcessRunner.class);
 
+	static final Metrics.Counter TASKS = Metrics.get().counter("tasks_total", "Tasks handled by this agent, by task type and outcome (the task's final state or refused)", "type", "outcome");
+	static private final Metrics.Histogram PHASE_TIME = Metrics.get().histogram("task_phase_seconds", "Time spent running task tests and exes", Metrics.TIME_BUCKETS, "type", "phase");
+	static private final Metrics.Histogram SCRIPT_START_TIME = Metrics.get().histogram("script_jvm_start_seconds", "Time taken to get a JVM to run a script in: borrowing a script host (including starting a new host when needed) or starting a new JVM", Metrics.TIME_BUCKETS, "mode");
+
 	static public enum TestResult {
 		PASS,
 		FAIL,
@@ -58,6 +56,7 @@ final public class ProcessRunner implements Runnable {
 	static class ExeResult {
 		private int rc;
 		private String output;
+		private ProcessUsage usage;
 
 		public ExeResult(int rc, String output) {
 			this.rc = rc;
@@ -77,60 +76,72 @@ final public class ProcessRunner implements Runnable {
 		public String getOutput() {
 			return output;
 		}
+
+		/**
+		 * @return The resources used to produce the result or null if they weren't measured
+		 */
+		ProcessUsage getUsage() {
+			return usage;
+		}
+
+		ExeResult setUsage(ProcessUsage usage) {
+			this.usage = usage;
+			return this;
+		}
 	}
 
 	static public final String SCRIPT_PREFIX = "script:";
-	static final Map<String, Killable> ACTIVE_TASKS = new HashMap<String, Killable>();
 	public static final String genThreadName(QueuedTask qt) {
-		return "SJQ4Task-" + qt.getServerHost() + "-" + qt.getServerPort() + "-" + qt.getQueueId();
+		return genThreadName(qt.getServerHost(), qt.getServerPort(), qt.getQueueId());
 	}
 
-	synchronized public static final boolean kill(String threadName) {
-		Killable k = ACTIVE_TASKS.remove(threadName);
-		if(k != null) {
-			LOG.warn("Killing task thread '" + threadName + "'");
-			k.kill();
-		} else {
-			LOG.error("Unable to kill '" + threadName + "'; " + ACTIVE_TASKS);
-		}
-		return k != null;
+	public static final String genThreadName(String serverHost, int serverPort, long qId) {
+		return "SJQ4Task-" + serverHost + "-" + serverPort + "-" + qId;
+	}
+
+	public static final boolean kill(String threadName) {
+		boolean killed = TaskRegistry.get().kill(threadName);
+		if(!killed)
+			LOG.error("Unable to kill '" + threadName + "'; task is not active on this agent");
+		return killed;
 	}
 
-	synchronized public static final void killAll() {
-		LOG.warn("Killing all active tasks! [count=" + ACTIVE_TASKS.size() + "]");
-		for(String tName : ACTIVE_TASKS.keySet())
-			kill(tName);
-		ACTIVE_TASKS.clear();
+	public static final void killAll() {
+		LOG.warn("Killing all active tasks!");
+		int count = TaskRegistry.get().killAll();
+		LOG.warn("Killed " + count + " active task(s)");
 	}
 
-	synchronized public static boolean isActive(QueuedTask qt) {
-		boolean retVal = ACTIVE_TASKS.containsKey(genThreadName(qt));
-		LOG.warn("isActive(" + genThreadName(qt) + ") = " + retVal + "; " + ACTIVE_TASKS.keySet());
+	public static boolean isActive(QueuedTask qt) {
+		boolean retVal = TaskRegistry.get().lookup(genThreadName(qt)) != null;
+		if(LOG.isDebugEnabled())
+			LOG.debug("isActive(" + genThreadName(qt) + ") = " + retVal);
 		return retVal;
 	}
 
 	private final Logger log;
 	private final QueuedTask qt;
-	private final Map<String, String> env;
+	private final QueuedTask received;
+	private final TaskRegistry.Entry entry;
+	private final TaskTrace trace;
 
 	/**
 	 * 
 	 */
 	public ProcessRunner(QueuedTask qt) {
-		synchronized(ProcessRunner.class) {
-			ACTIVE_TASKS.put(genThreadName(qt), null);
-		}
 		this.qt = qt;
+		received = WireCodec.copy(qt);
+		trace = new TaskTrace(qt);
 		log = Logger.getLogger(ProcessRunner.class.getName() + "." + qt.getServerHost().replace(".", "_") + "-" + qt.getServerPort() + "-" + qt.getQueueId());
-		env = new HashMap<String, String>();
-		try {
-			Map<?, ?> parentEnv = EnvironmentUtils.getProcEnvironment();
-			for(Object var : parentEnv.keySet())
-				env.put(var.toString(), parentEnv.get(var).toString());
-		} catch (IOException e) {
-			log.warn("IOError grabbing parent env; using empty env instead!", e);
-		}
-		env.putAll(qt.getMetadata());
+		// Registered last so a task whose runner can't be built is never reported as active
+		entry = TaskRegistry.get().register(genThreadName(qt));
+	}
+
+	/**
+	 * Drop a runner that will never be run, so the task is no longer reported as active
+	 */
+	void discard() {
+		TaskRegistry.get().unregister(entry);
 	}
 
 	/* (non-Javadoc)
@@ -138,12 +149,15 @@ final public class ProcessRunner implements Runnable {
 	 */
 	@Override
 	public void run() {
+		boolean reporting = false;
 		log.info("Starting process runner for: " + qt);
-		boolean forceUpdate = true;
-		ServerClient sc = null;
-		if(qt.getTestArgs() != null && qt.getTestArgs().length() > 0)
+		if(qt.getTestArgs() != null && qt.getTestArgs().length() > 0) {
+			long start = System.currentTimeMillis();
 			qt.setTestArgs(expandArgs(qt.getTestArgs()));
+			trace.add("expand_args", start, "test");
+		}
 		try {
+			entry.setState(TaskRegistry.State.TESTING);
 			TestResult testResult = runTest();
 			if(testResult == TestResult.FAIL) {
 				qt.setState(State.RETURNED);
@@ -153,38 +167,56 @@ final public class ProcessRunner implements Runnable {
 				qt.setCompleted(new Date());
 			} else {
 				String args;
+				long start = System.currentTimeMillis();
 				try {
-					sc = new ServerClient(qt.getServerHost(), qt.getServerPort());
-					args = sc.getExeArgs(qt);
+					args = ServerClientPool.execute(qt.getServerHost(), qt.getServerPort(), new ServerClientPool.Request<String>() {
+						@Override
+						public String send(ServerClient clnt) {
+							return clnt.getExeArgs(qt);
+						}
+					});
+					trace.add("getargs", start, args != null ? "override" : "default");
 					if(args == null)
 						args = qt.getExeArguments() == null ? "" : qt.getExeArguments();
+					start = System.currentTimeMillis();
 					qt.setExeArguments(expandArgs(args));
+					trace.add("expand_args", start, "exe");
 				} catch(IOException e) {
+					trace.add("getargs", start, "failed");
 					args = null;
-				} finally {
-					if(sc != null)
-						sc.close();
 				}
+				entry.setState(TaskRegistry.State.RUNNING);
 				int rc = runExe();
 				qt.setCompleted(new Date());
 				qt.setState(rc >= qt.getMinReturnCode() && rc <= qt.getMaxReturnCode() ? State.COMPLETED : State.FAILED);			
 			}
-			try {
-				updateTask();
-				forceUpdate = false;
-			} catch (IOException e) {
-				log.fatal("Failed to update " + qt, e);
+			TASKS.inc(qt.getId().toUpperCase(), qt.getState().toString().toLowerCase());
+			entry.setState(TaskRegistry.State.REPORTING);
+			if(Config.get().isTraceMetadata()) {
+				if(qt.getMetadata() == null)
+					qt.setMetadata(new HashMap<String, String>());
+				qt.getMetadata().put(TaskTrace.METADATA_KEY, trace.toJson(qt.getState().toString()));
 			}
-		} finally {
-			if(forceUpdate) {
-				LOG.warn("Removing task from active list: " + genThreadName(qt));
-				synchronized(ProcessRunner.class) {
-					ACTIVE_TASKS.remove(genThreadName(qt));
+			// The task stays active until the server has its final state (or it's spooled) so ISACTIVE can't report it gone first
+			sendResult(ResultSpool.Type.UPDATE, null, new Runnable() {
+				@Override
+				public void run() {
+					finish();
 				}
-			}
+			});
+			reporting = true;
+		} finally {
+			if(!reporting)
+				finish();
 		}
 	}
 
+	private void finish() {
+		LOG.info("Removing task from active list: " + genThreadName(qt));
+		TaskRegistry.get().unregister(entry);
+		trace.write(qt.getState() != null ? qt.getState().toString() : "UNKNOWN");
+	}
+
 	private int runExe() {
 		String exe = qt.getExecutable();
 		ExeResult result = null;
@@ -195,7 +227,9 @@ final public class ProcessRunner implements Runnable {
 					log.error("Unable to read script '" + script.getAbsolutePath() + "'; marking task as FAILED!");
 					return -1;
 				}
-				result = runScript(exe.substring(SCRIPT_PREFIX.length()), getArgsArray(qt.getExeArguments()), qt.getMaxTime() * 1000L);
+				long start = System.currentTimeMillis();
+				result = runScript(exe.substring(SCRIPT_PREFIX.length()), getArgsArray(qt.getExeArguments()), qt.getMaxTime() * 1000L, taskOutputSink(), Config.get().getProcessLimits(qt.getId()));
+				endPhase("exe", start, "rc=" + result.getRc());
 				return result.getRc();
 			}
 			File exeFile = new File(exe);
@@ -203,36 +237,70 @@ final public class ProcessRunner implements Runnable {
 				log.error("Unable to execute '" + exeFile.getAbsolutePath() + "'; marking task as FAILED!");
 				return -1;
 			}
-			result = runExternalExe(qt.getExecutable(), getArgsArray(qt.getExeArguments()), qt.getMaxTime() * 1000L);
+			long start = System.currentTimeMillis();
+			result = runExternalExe(qt.getExecutable(), getArgsArray(qt.getExeArguments()), qt.getMaxTime() * 1000L, taskOutputSink(), Config.get().getProcessLimits(qt.getId()));
+			endPhase("exe", start, "rc=" + result.getRc());
 			return result.getRc();
 		} finally {
-			if(result != null && result.getOutput().length() > 0) {
-				ServerClient sc = null;
+			if(result != null && result.getUsage() != null) {
+				if(qt.getMetadata() == null)
+					qt.setMetadata(new HashMap<String, String>());
+				result.getUsage().addTo(qt.getMetadata());
+			}
+			if(result != null && result.getOutput().length() > 0)
+				sendResult(ResultSpool.Type.LOGEXE, result.getOutput(), null);
+		}
+	}
+
+	private TaskOutput.Sink taskOutputSink() {
+		return new TaskOutput.Sink() {
+			@Override
+			public boolean send(final String chunk) {
+				if(ResultSpool.get().isSpooled(qt))
+					return false;
 				try {
-					sc = new ServerClient(qt.getServerHost(), qt.getServerPort());
-					sc.logTaskOutput(qt, result.getOutput());
-				} catch (IOException e) {
-					log.error("Failed to send task output to server!", e);
-				} finally {
-					if(sc != null) sc.close();
+					NetworkAck ack = ServerClientPool.execute(qt.getServerHost(), qt.getServerPort(), new ServerClientPool.Request<NetworkAck>() {
+						@Override
+						public NetworkAck send(ServerClient clnt) {
+							return clnt.logTaskOutput(qt, chunk);
+						}
+					});
+					return ack != null && ack.isOk();
+				} catch(IOException e) {
+					log.warn("Failed to stream task output to server; output will be sent when the task completes", e);
+					return false;
 				}
 			}
-		}
+		};
 	}
 
-	private void updateTask() throws IOException {
-		ServerClient clnt = null;
-		try {
-			clnt = new ServerClient(qt.getServerHost(), qt.getServerPort());
-			clnt.update(qt);
-		} finally {
-			if(clnt != null)
-				clnt.close();		
-		}
-		LOG.warn("Removing task from active list: " + genThreadName(qt));
-		synchronized(ProcessRunner.class) {
-			ACTIVE_TASKS.remove(genThreadName(qt));
-		}
+	/**
+	 * Hand a result to the spool, which delivers it to the server or, if it can't be delivered (or earlier results for this task are still waiting), spools it for later delivery; never blocks
+	 * @param type The type of result to deliver
+	 * @param output The output to deliver; ignored for UPDATE
+	 * @param done Run once the result has been delivered or spooled; may be null
+	 */
+	private void sendResult(final ResultSpool.Type type, String output, final Runnable done) {
+		final String phase = type == ResultSpool.Type.UPDATE ? "update" : "upload_" + (type == ResultSpool.Type.LOGTEST ? "test" : "exe");
+		final long start = System.currentTimeMillis();
+		ResultSpool.get().add(type, qt, output, type == ResultSpool.Type.UPDATE ? received : null, new ResultSpool.Callback() {
+			@Override
+			public void handled(boolean delivered) {
+				trace.add(phase, start, delivered ? "sent" : "spooled");
+				if(!delivered)
+					log.error("Failed to deliver " + type + " for " + qt + "; it has been spooled for later delivery");
+				if(done != null)
+					done.run();
+			}
+		});
+	}
+
+	/**
+	 * Record the end of a test or exe run, in both the task's trace and the metrics
+	 */
+	private void endPhase(String phase, long start, String outcome) {
+		PHASE_TIME.observeSince(start, qt.getId().toUpperCase(), phase);
+		trace.add(phase, start, outcome);
 	}
 
 	private TestResult runTest() {
@@ -258,16 +326,10 @@ final public class ProcessRunner implements Runnable {
 			log.error("'" + exeFile.getAbsolutePath() + "' does not exist or is not readable!  Test considered FAILED!");
 			return TestResult.FAIL;
 		}
-		ExeResult result = runScript(exe, getArgsArray(qt.getTestArgs()), Config.get().getMaxTestTime() * 1000L);
-		ServerClient sc = null;
-		try {
-			sc = new ServerClient(qt.getServerHost(), qt.getServerPort());
-			sc.logTestOutput(qt, result.getOutput());
-		} catch (IOException e) {
-			log.error("Failed to send logs to server!", e);
-		} finally {
-			if(sc != null) sc.close();
-		}
+		long start = System.currentTimeMillis();
+		ExeResult result = runScript(exe, getArgsArray(qt.getTestArgs()), Config.get().getMaxTestTime() * 1000L, null, null);
+		endPhase("test", start, "rc=" + result.getRc());
+		sendResult(ResultSpool.Type.LOGTEST, result.getOutput(), null);
 		switch(result.getRc()) {
 		case 0: return TestResult.PASS;
 		case 2: return TestResult.SKIP;
@@ -276,86 +338,86 @@ final public class ProcessRunner implements Runnable {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private ExeResult runScript(final String script, String[] args, long maxTimeMillis) {
-
-		String javaExe = System.getProperty("java.home") + "/bin/java";
-		if(SystemUtils.IS_OS_WINDOWS)
-			javaExe = javaExe.concat(".exe");
-		CommandLine cmd = new CommandLine(javaExe);
-		Collection<?> jars;
-		if(SageAPI.isRemote()) {
-			jars = FileUtils.listFiles(new File("../lib"), new String[] {"jar"}, false);
-			jars.addAll(FileUtils.listFiles(new File("../engines"), new String[] {"jar"}, false));			
-		} else
-			jars = FileUtils.listFiles(new File("JARs"), new String[] {"jar"}, false);
-		cmd.addArguments((String[])ArrayUtils.addAll(new String[] {"-cp", StringUtils.join(jars, SystemUtils.PATH_SEPARATOR), ScriptRunner.class.getName(), qt.getServerHost(), String.valueOf(qt.getRmiPort()), String.valueOf(qt.getQueueId()), script}, args));
-		return runExternalExe(cmd.getExecutable(), cmd.getArguments(), maxTimeMillis);
+	private ExeResult runScript(final String script, String[] args, long maxTimeMillis, TaskOutput.Sink sink, ProcessLimits limits) {
+		// Pooled hosts are already running so process limits can't be applied to them; fork a JVM for such tasks
+		long start = System.currentTimeMillis();
+		ScriptHostPool.Host host = Config.get().getScriptHosts() > 0 && limits == null ? ScriptHostPool.get().borrow() : null;
+		if(host != null) {
+			SCRIPT_START_TIME.observeSince(start, "pooled");
+			trace.add("jvm_start", start, "pooled");
+			try {
+				if(!entry.setKillable(host))
+					return new ExeResult(-1, "*** Process killed by SJQ ***\n\n");
+				ProcessUsage usage = new ProcessUsage(); // Only the wall time; the host JVM is shared by many jobs
+				try {
+					return host.run(qt, script, args, maxTimeMillis, sink).setUsage(usage);
+				} finally {
+					usage.stop();
+					entry.setKillable(null);
+				}
+			} finally {
+				ScriptHostPool.get().release(host);
+			}
+		}
+		CommandLine cmd = new CommandLine(ScriptRunner.getJavaExe());
+		cmd.addArguments((String[])ArrayUtils.addAll(new String[] {"-cp", ScriptRunner.getClasspath(), ScriptRunner.class.getName(), qt.getServerHost(), String.valueOf(qt.getRmiPort()), String.valueOf(qt.getQueueId()), script}, args));
+		ExeResult result = runExternalExe(cmd.getExecutable(), cmd.getArguments(), maxTimeMillis, sink, limits);
+		if(result.getUsage() != null && result.getUsage().getLaunched() >= 0) {
+			SCRIPT_START_TIME.observe((result.getUsage().getLaunched() - start) / 1000.0, "forked");
+			trace.add("jvm_start", start, result.getUsage().getLaunched(), "forked");
+		}
+		return result;
 	}
 
-	private ExeResult runExternalExe(String exe, String[] args, long maxTimeMillis) {
+	private ExeResult runExternalExe(String exe, String[] args, long maxTimeMillis, TaskOutput.Sink sink, ProcessLimits limits) {
 		File exeFile = new File(exe);
 		if(!exeFile.canExecute()) {
 			String err = "Exe does not exist or cannot be executed! [" + exeFile.getAbsolutePath() + "]";
 			log.error(err);
 			return new ExeResult(-1, err);
 		}
-		ByteArrayOutputStream stdout = new ByteArrayOutputStream();
-		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
-		CommandLine cmd = new CommandLine(exeFile);
-		cmd.addArguments(args, false);
+		int maxOutput = Config.get().getMaxOutput();
+		TaskOutput stdout = new TaskOutput(null, sink, maxOutput);
+		TaskOutput stderr = new TaskOutput("----- stderr -----\n\n", sink, maxOutput);
 		Executor executor = new DefaultExecutor();
 		executor.setExitValues(null);
 		executor.setStreamHandler(new PumpStreamHandler(stdout, stderr));
-		ExecuteWatchdog watchdog = new ExecuteWatchdog(maxTimeMillis);
-		synchronized(ProcessRunner.class){ 
-			ACTIVE_TASKS.put(genThreadName(qt), new KillableExe(watchdog));
-		}
+		ProcessUsage usage = new ProcessUsage();
+		ExecuteWatchdog watchdog = new TreeWatchdog(maxTimeMillis, usage);
+		if(!entry.setKillable(new KillableExe(watchdog)))
+			return new ExeResult(-1, "*** Process killed by SJQ ***\n\n");
+		ProcessLimits.Launch launch = limits != null ? limits.prepare(genThreadName(qt), exeFile.getAbsolutePath(), args) : null;
+		CommandLine cmd = launch != null ? new CommandLine(launch.getExe()) : new CommandLine(exeFile);
+		cmd.addArguments(launch != null ? launch.getArgs() : args, false);
 		executor.setWatchdog(watchdog);
 		int rc = -1;
 		try {
-			rc = executor.execute(cmd, getEnvMap(qt.getMetadata()));
+			rc = executor.execute(cmd, ParentEnvironment.overlay(qt.getMetadata()));
 		} catch (ExecuteException e) {
 			rc = e.getExitValue();
 			log.error("Execution failed! [rc=" + rc + "]", e);
 		} catch (IOException e) {
 			log.error("IOError", e);
+		} finally {
+			usage.stop();
+			entry.setKillable(null);
+			if(launch != null)
+				launch.close();
 		}
-		StringBuilder output = new StringBuilder();
-		if(stdout.toString().length() > 0)
-			output.append(stdout.toString());
-		if(stderr.toString().length() > 0) {
-			output.append("----- stderr -----\n\n");
-			output.append(stderr.toString());
-			output.append("------------------\n\n");
-		}
+		String output = stdout.drain() + stderr.drain();
 		if(watchdog.killedProcess())
-			return new ExeResult(-1, "*** Process killed by SJQ ***\n\n" + (output.toString().length() > 0 ? output.toString() : ""));
-		return new ExeResult(rc, output.toString());
-	}
-
-	@SuppressWarnings("unchecked")
-	static private final Map<String, String> getEnvMap(Map<String, String> map) {
-		Map<String, String> env;
-		try {
-			env = (Map<String, String>)EnvironmentUtils.getProcEnvironment();
-		} catch (IOException e) {
-			env = new HashMap<String, String>();
-		}
-		env.putAll(map);
-		return env;
+			return new ExeResult(-1, "*** Process killed by SJQ ***\n\n" + output).setUsage(usage);
+		return new ExeResult(rc, output).setUsage(usage);
 	}
 
 	private final String expandArgs(final String args) {
-		String expandedArgs = args;
-		for(String key : qt.getMetadata().keySet())
-			expandedArgs = expandedArgs.replace("$" + key, qt.getMetadata().get(key));
+		String expandedArgs = VarExpander.expand(args, qt.getMetadata());
 		if(!expandedArgs.equals(args))
 			LOG.info("Converted '" + args + "' to '" + expandedArgs + "'");
 		return expandedArgs;
 	}
 
-	static private final String[] getArgsArray(String args) {
+	static final String[] getArgsArray(String args) {
 		return new CommandLine("a.exe").addArguments(args, false).getArguments();
 	}
 }
@@ -0,0 +1,356 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.SystemUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * <p>Terminates a process along with every process it started.</p>
+ * <p>
+ *    Process.destroy() only signals the direct child, so wrapper scripts leave their ffmpeg, comskip, etc.
+ *    running.  Instead the whole tree is found (via /proc on Linux, ps on other Unixes) and sent SIGTERM; anything
+ *    still alive after the grace period (agent.killgrace) is sent SIGKILL.  On Windows, taskkill /T does the same.
+ *    The tree is remembered when the kill starts, so children orphaned by their parent exiting first are still
+ *    killed; each pid is remembered with its start time, so a pid reused by an unrelated process is left alone.  If the pid of a process can't be found (on Windows before Java 9 the JVM only keeps its handle),
+ *    Process.destroy() is used instead and only the process itself is killed.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class ProcessTree {
+	static private final Logger LOG = Logger.getLogger(ProcessTree.class);
+
+	static private final File PROC = new File("/proc");
+	static private final long POLL_INTERVAL = 250L;
+
+	/**
+	 * @param proc The process
+	 * @return The process' pid or -1 if it can't be found on this JVM
+	 */
+	static int getPid(Process proc) {
+		try {
+			Method m = Process.class.getMethod("pid"); // Java 9+
+			return ((Number)m.invoke(proc)).intValue();
+		} catch(Exception e) {
+			// Fall through to the pre Java 9 implementations
+		}
+		try {
+			Field f = proc.getClass().getDeclaredField("pid");
+			f.setAccessible(true);
+			return f.getInt(proc);
+		} catch(Exception e) {
+			LOG.debug("Unable to find pid of " + proc.getClass().getName(), e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Terminate a process and all of its descendants; returns once the SIGTERM has been sent, the SIGKILL that
+	 * follows the grace period is sent from a background thread
+	 * @param proc The process
+	 * @param graceMillis How long to wait after SIGTERM before sending SIGKILL
+	 */
+	static void terminate(Process proc, long graceMillis) {
+		final int pid = getPid(proc);
+		if(pid <= 0) {
+			proc.destroy();
+			return;
+		}
+		if(SystemUtils.IS_OS_WINDOWS)
+			terminateWindows(proc, pid, graceMillis);
+		else
+			terminateUnix(proc, pid, graceMillis);
+	}
+
+	static private void terminateUnix(final Process proc, final int pid, final long graceMillis) {
+		// Each pid is remembered with its start time; by the time SIGKILL goes out a pid may belong to another process
+		final Map<Integer, String> tree = new LinkedHashMap<Integer, String>();
+		addWithStartTime(tree, pid);
+		for(Integer p : getDescendants(pid))
+			addWithStartTime(tree, p);
+		LOG.info("Sending SIGTERM to process tree of " + pid + " " + tree.keySet());
+		signal("TERM", tree.keySet());
+		reap(new Runnable() {
+			@Override
+			public void run() {
+				if(waitFor(proc, tree, graceMillis))
+					return;
+				// Children may have started more processes since the SIGTERM went out
+				for(Integer p : new ArrayList<Integer>(tree.keySet()))
+					if(isSame(p, tree.get(p)))
+						for(Integer d : getDescendants(p))
+							if(!tree.containsKey(d))
+								addWithStartTime(tree, d);
+				List<Integer> alive = new ArrayList<Integer>();
+				for(Map.Entry<Integer, String> e : tree.entrySet())
+					if(isAlive(e.getKey()) && isSame(e.getKey(), e.getValue()))
+						alive.add(e.getKey());
+				if(!alive.isEmpty()) {
+					LOG.warn("Process tree of " + pid + " did not exit within " + graceMillis + "ms; sending SIGKILL to " + alive);
+					signal("KILL", alive);
+				}
+				proc.destroy();
+			}
+		}, pid);
+	}
+
+	static private void terminateWindows(final Process proc, final int pid, final long graceMillis) {
+		LOG.info("Terminating process tree of " + pid);
+		exec("taskkill", "/T", "/PID", String.valueOf(pid));
+		reap(new Runnable() {
+			@Override
+			public void run() {
+				if(waitFor(proc, null, graceMillis))
+					return;
+				LOG.warn("Process tree of " + pid + " did not exit within " + graceMillis + "ms; forcing it");
+				exec("taskkill", "/T", "/F", "/PID", String.valueOf(pid));
+				proc.destroy();
+			}
+		}, pid);
+	}
+
+	static private void reap(Runnable r, int pid) {
+		Thread t = new Thread(r, "SJQ4Reaper-" + pid);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	static private void addWithStartTime(Map<Integer, String> tree, int pid) {
+		String start = getStartTime(pid);
+		if(start.length() > 0) // Otherwise it's gone already
+			tree.put(pid, start);
+	}
+
+	/**
+	 * @param pid The pid
+	 * @param start The start time recorded for the pid
+	 * @return True if the pid still belongs to the process that had the given start time (i.e. it hasn't been reused)
+	 */
+	static private boolean isSame(int pid, String start) {
+		return start != null && start.equals(getStartTime(pid));
+	}
+
+	/**
+	 * @return The process' start time, as reported by the OS, or the empty string if the process is gone
+	 */
+	static private String getStartTime(int pid) {
+		if(PROC.isDirectory() && new File(PROC, "self/stat").exists())
+			return getStatField(new File(PROC, pid + "/stat"), 19);
+		StringBuilder out = new StringBuilder();
+		if(run(out, "ps", "-o", "lstart=", "-p", String.valueOf(pid)) != 0)
+			return "";
+		return out.toString().trim();
+	}
+
+	/**
+	 * @return True if the process and the given pids (if any) all exited within the timeout; a pid that now belongs to another process counts as exited
+	 */
+	static private boolean waitFor(Process proc, Map<Integer, String> pids, long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+		while(true) {
+			boolean done = !isAlive(proc);
+			if(done && pids != null)
+				for(Map.Entry<Integer, String> e : pids.entrySet())
+					if(isAlive(e.getKey()) && isSame(e.getKey(), e.getValue())) {
+						done = false;
+						break;
+					}
+			if(done)
+				return true;
+			long left = end - System.currentTimeMillis();
+			if(left <= 0)
+				return false;
+			try {
+				Thread.sleep(Math.min(left, POLL_INTERVAL));
+			} catch(InterruptedException e) {
+				return false;
+			}
+		}
+	}
+
+	static private boolean isAlive(Process proc) {
+		try {
+			proc.exitValue();
+			return false;
+		} catch(IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	static private boolean isAlive(int pid) {
+		if(PROC.isDirectory()) {
+			File stat = new File(PROC, pid + "/stat");
+			if(!stat.exists())
+				return false;
+			// A zombie has exited; it's just waiting for its parent to collect it
+			return !getStatField(stat, 0).equals("Z");
+		}
+		return exec("kill", "-0", String.valueOf(pid)) == 0;
+	}
+
+	/**
+	 * @return All descendants of the given process, children first
+	 */
+	static List<Integer> getDescendants(int pid) {
+		Map<Integer, List<Integer>> children = getChildMap();
+		List<Integer> found = new ArrayList<Integer>();
+		List<Integer> queue = new ArrayList<Integer>();
+		queue.add(pid);
+		for(int i = 0; i < queue.size(); ++i) {
+			List<Integer> kids = children.get(queue.get(i));
+			if(kids != null)
+				for(Integer k : kids)
+					if(!found.contains(k)) {
+						found.add(k);
+						queue.add(k);
+					}
+		}
+		return found;
+	}
+
+	/**
+	 * @return Every running process' children, keyed by parent pid
+	 */
+	static private Map<Integer, List<Integer>> getChildMap() {
+		Map<Integer, List<Integer>> map = new HashMap<Integer, List<Integer>>();
+		if(PROC.isDirectory() && new File(PROC, "self/stat").exists()) {
+			String[] pids = PROC.list();
+			if(pids != null)
+				for(String p : pids) {
+					if(!p.matches("\\d+"))
+						continue;
+					String ppid = getStatField(new File(PROC, p + "/stat"), 1);
+					if(ppid.length() > 0)
+						addChild(map, Integer.parseInt(ppid), Integer.parseInt(p));
+				}
+			return map;
+		}
+		try {
+			Process ps = new ProcessBuilder("ps", "-A", "-o", "pid=", "-o", "ppid=").redirectErrorStream(true).start();
+			BufferedReader r = new BufferedReader(new InputStreamReader(ps.getInputStream()));
+			try {
+				String line;
+				while((line = r.readLine()) != null) {
+					String[] f = line.trim().split("\\s+");
+					if(f.length == 2 && f[0].matches("\\d+") && f[1].matches("\\d+"))
+						addChild(map, Integer.parseInt(f[1]), Integer.parseInt(f[0]));
+				}
+			} finally {
+				r.close();
+				ps.waitFor();
+			}
+		} catch(Exception e) {
+			LOG.warn("Unable to list processes; only the task's own process will be killed", e);
+		}
+		return map;
+	}
+
+	static private void addChild(Map<Integer, List<Integer>> map, int parent, int child) {
+		List<Integer> kids = map.get(parent);
+		if(kids == null) {
+			kids = new ArrayList<Integer>();
+			map.put(parent, kids);
+		}
+		kids.add(child);
+	}
+
+	/**
+	 * @param stat A /proc/[pid]/stat file
+	 * @param field The field to return, counting from the one after the command name (0 is the state, 1 the parent pid)
+	 * @return The field or the empty string if the process is gone
+	 */
+	static private String getStatField(File stat, int field) {
+		String[] f = readStat(stat);
+		return field < f.length ? f[field] : "";
+	}
+
+	/**
+	 * @param stat A /proc/[pid]/stat file
+	 * @return The fields after the command name (0 is the state, 1 the parent pid, etc.) or an empty array if the process is gone
+	 */
+	static String[] readStat(File stat) {
+		try {
+			BufferedReader r = new BufferedReader(new FileReader(stat));
+			try {
+				String line = r.readLine();
+				int end = line != null ? line.lastIndexOf(')') : -1;
+				if(end < 0)
+					return new String[0];
+				return line.substring(end + 1).trim().split("\\s+");
+			} finally {
+				r.close();
+			}
+		} catch(IOException e) {
+			return new String[0];
+		}
+	}
+
+	static private void signal(String sig, Iterable<Integer> pids) {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add("kill");
+		cmd.add("-" + sig);
+		for(Integer p : pids)
+			cmd.add(p.toString());
+		exec(cmd.toArray(new String[cmd.size()]));
+	}
+
+	/**
+	 * @return The command's exit code or -1 if it couldn't be run
+	 */
+	static private int exec(String... cmd) {
+		return run(null, cmd);
+	}
+
+	/**
+	 * @param out Receives the command's output, if not null
+	 * @param cmd The command to run
+	 * @return The command's exit code or -1 if it couldn't be run
+	 */
+	static private int run(StringBuilder out, String... cmd) {
+		try {
+			Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+			BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			try {
+				String line;
+				while((line = r.readLine()) != null) // Drain it so the process can't block on a full pipe
+					if(out != null)
+						out.append(line).append('\n');
+			} finally {
+				r.close();
+			}
+			return p.waitFor();
+		} catch(Exception e) {
+			LOG.error("Unable to run " + cmd[0], e);
+			return -1;
+		}
+	}
+
+	private ProcessTree() {}
+}
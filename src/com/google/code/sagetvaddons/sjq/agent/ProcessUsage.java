@@ -0,0 +1,257 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>Measures the resources used by a task's process and everything it starts.</p>
+ * <p>
+ *    On Linux the process tree is sampled from /proc once a second: CPU time (the tree's own plus that of
+ *    children it has already waited for), the peak combined resident set size and the bytes read from and
+ *    written to storage (again the tree's own plus that of children already waited for; the kernel adds those to
+ *    the parent's counters just as it does their CPU time, so only live processes are counted).  Elsewhere only
+ *    the total CPU time of the process itself is available, and only on Java 9+.  Since figures come from the
+ *    last sample, up to a second of activity before the process exits can be missed.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class ProcessUsage {
+	static private final Logger LOG = Logger.getLogger(ProcessUsage.class);
+
+	static final String WALL_TIME = "SJQ4_EXE_WALLTIME";
+	static final String CPU_TIME = "SJQ4_EXE_CPUTIME";
+	static final String USER_TIME = "SJQ4_EXE_USERTIME";
+	static final String SYS_TIME = "SJQ4_EXE_SYSTIME";
+	static final String PEAK_RSS = "SJQ4_EXE_PEAKRSS";
+	static final String READ_BYTES = "SJQ4_EXE_READBYTES";
+	static final String WRITE_BYTES = "SJQ4_EXE_WRITEBYTES";
+
+	static private final File PROC = new File("/proc");
+	static private final boolean USE_PROC = new File(PROC, "self/stat").exists();
+	static private final long SAMPLE_INTERVAL = 1000L;
+	/**
+	 * Clock ticks per second of the /proc/[pid]/stat times; USER_HZ is 100 on every mainstream Linux platform
+	 */
+	static private final long CLOCK_TICKS = 100L;
+
+	static private final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "SJQ4UsageSampler");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final long started;
+	private long launched;
+	private Process proc;
+	private int pid;
+	private ScheduledFuture<?> sampling;
+	private long stopped;
+
+	private long userTicks;
+	private long sysTicks;
+	private long cpuMillis;
+	private long peakRss;
+	private long readBytes;
+	private long writeBytes;
+
+	ProcessUsage() {
+		started = System.currentTimeMillis();
+		launched = -1;
+		stopped = -1;
+		pid = -1;
+		userTicks = sysTicks = 0;
+		cpuMillis = -1;
+		peakRss = -1;
+		readBytes = writeBytes = -1;
+	}
+
+	/**
+	 * Start sampling the given process
+	 * @param proc The process
+	 */
+	synchronized void start(Process proc) {
+		launched = System.currentTimeMillis();
+		this.proc = proc;
+		pid = ProcessTree.getPid(proc);
+		if(!USE_PROC && pid <= 0)
+			return;
+		sampling = SAMPLER.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sample();
+				} catch(Throwable t) {
+					LOG.error("Usage sample failed", t);
+				}
+			}
+		}, 0, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop sampling; call once the process has exited
+	 */
+	synchronized void stop() {
+		if(stopped < 0)
+			stopped = System.currentTimeMillis();
+		if(sampling != null)
+			sampling.cancel(false);
+	}
+
+	/**
+	 * @return The time the process was started or -1 if it never was
+	 */
+	synchronized long getLaunched() {
+		return launched;
+	}
+
+	private synchronized void sample() {
+		if(stopped >= 0)
+			return;
+		if(USE_PROC && pid > 0)
+			sampleProc();
+		else
+			sampleHandle();
+	}
+
+	private void sampleProc() {
+		String[] root = ProcessTree.readStat(new File(PROC, pid + "/stat"));
+		if(root.length < 15)
+			return; // Gone already
+		long user = 0, sys = 0, rss = 0, read = -1, write = -1;
+		List<Integer> tree = ProcessTree.getDescendants(pid);
+		tree.add(0, pid);
+		for(Integer p : tree) {
+			String[] f = p == pid ? root : ProcessTree.readStat(new File(PROC, p + "/stat"));
+			if(f.length < 15)
+				continue;
+			// utime, stime, cutime, cstime; a child's times move to its parent's c*time once the parent has waited for it
+			user += Long.parseLong(f[11]) + Long.parseLong(f[13]);
+			sys += Long.parseLong(f[12]) + Long.parseLong(f[14]);
+			rss += readStatus(p, "VmRSS:");
+			long[] io = readIo(p);
+			if(io != null) {
+				read = Math.max(read, 0) + io[0];
+				write = Math.max(write, 0) + io[1];
+			}
+		}
+		userTicks = Math.max(userTicks, user);
+		sysTicks = Math.max(sysTicks, sys);
+		peakRss = Math.max(peakRss, rss * 1024L);
+		readBytes = Math.max(readBytes, read);
+		writeBytes = Math.max(writeBytes, write);
+	}
+
+	/**
+	 * @return The value of the given /proc/[pid]/status field, in kB, or 0 if it's not available
+	 */
+	static private long readStatus(int p, String field) {
+		try {
+			BufferedReader r = new BufferedReader(new FileReader(new File(PROC, p + "/status")));
+			try {
+				String line;
+				while((line = r.readLine()) != null)
+					if(line.startsWith(field))
+						return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+			} finally {
+				r.close();
+			}
+		} catch(IOException e) {
+			// Process is gone
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The process' bytes read and written, including those of children it has waited for, or null if they're not available
+	 */
+	static private long[] readIo(int p) {
+		long read = -1, write = -1;
+		try {
+			BufferedReader r = new BufferedReader(new FileReader(new File(PROC, p + "/io")));
+			try {
+				String line;
+				while((line = r.readLine()) != null) {
+					if(line.startsWith("read_bytes:"))
+						read = Long.parseLong(line.substring(11).trim());
+					else if(line.startsWith("write_bytes:"))
+						write = Long.parseLong(line.substring(12).trim());
+				}
+			} finally {
+				r.close();
+			}
+		} catch(IOException e) {
+			return null; // Gone or not readable (/proc/[pid]/io needs ptrace access)
+		}
+		return read >= 0 && write >= 0 ? new long[] {read, write} : null;
+	}
+
+	private void sampleHandle() {
+		try {
+			Object handle = Process.class.getMethod("toHandle").invoke(proc);
+			Object info = Class.forName("java.lang.ProcessHandle").getMethod("info").invoke(handle);
+			Object cpu = Class.forName("java.lang.ProcessHandle$Info").getMethod("totalCpuDuration").invoke(info);
+			Method isPresent = cpu.getClass().getMethod("isPresent");
+			if((Boolean)isPresent.invoke(cpu)) {
+				Object duration = cpu.getClass().getMethod("get").invoke(cpu);
+				cpuMillis = Math.max(cpuMillis, ((Number)Class.forName("java.time.Duration").getMethod("toMillis").invoke(duration)).longValue());
+			}
+		} catch(Exception e) {
+			LOG.debug("Process CPU time not available on this JVM", e);
+			sampling.cancel(false);
+		}
+	}
+
+	/**
+	 * Add the measurements to the given task metadata; figures that weren't available are left out
+	 * @param metadata The metadata to update
+	 */
+	synchronized void addTo(Map<String, String> metadata) {
+		long end = stopped >= 0 ? stopped : System.currentTimeMillis();
+		metadata.put(WALL_TIME, String.valueOf(end - started));
+		if(USE_PROC && pid > 0) {
+			long user = userTicks * 1000L / CLOCK_TICKS;
+			long sys = sysTicks * 1000L / CLOCK_TICKS;
+			metadata.put(CPU_TIME, String.valueOf(user + sys));
+			metadata.put(USER_TIME, String.valueOf(user));
+			metadata.put(SYS_TIME, String.valueOf(sys));
+			if(peakRss >= 0)
+				metadata.put(PEAK_RSS, String.valueOf(peakRss));
+			if(readBytes >= 0) {
+				metadata.put(READ_BYTES, String.valueOf(readBytes));
+				metadata.put(WRITE_BYTES, String.valueOf(writeBytes));
+			}
+		} else if(cpuMillis >= 0)
+			metadata.put(CPU_TIME, String.valueOf(cpuMillis));
+	}
+}
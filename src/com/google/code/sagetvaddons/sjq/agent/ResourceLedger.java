@@ -0,0 +1,137 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>The agent's own account of the resources (agent.resources) consumed by the tasks it's running.</p>
+ * <p>
+ *    The server only has a stale view of an agent's free resources, so the agent keeps its own ledger: a task's
+ *    resources are reserved when the task is accepted, adjusted when a script calls Tools.setTaskResources() and
+ *    released once the task has reported its results.  Any reservation or increase that would take the agent past
+ *    its total resources is refused.  Reservations are keyed by the task's thread name (see
+ *    ProcessRunner.genThreadName()).
+ * </p>
+ * @author dbattams
+ *
+ */
+final public class ResourceLedger {
+	static private final Logger LOG = Logger.getLogger(ResourceLedger.class);
+
+	static private ResourceLedger INSTANCE = null;
+	synchronized static public final ResourceLedger get() {
+		if(INSTANCE == null)
+			INSTANCE = new ResourceLedger();
+		return INSTANCE;
+	}
+
+	private final Map<String, Integer> reserved;
+	private int used;
+
+	private ResourceLedger() {
+		reserved = new HashMap<String, Integer>();
+		used = 0;
+	}
+
+	/**
+	 * Reserve resources for a newly accepted task
+	 * @param name The task's thread name
+	 * @param amount The resources the task requires
+	 * @return True if the resources were reserved or false if the task already holds a reservation or the agent doesn't have that many resources free
+	 */
+	synchronized boolean reserve(String name, int amount) {
+		amount = Math.max(0, amount);
+		if(reserved.containsKey(name)) {
+			LOG.warn("Task '" + name + "' already holds a reservation; refusing a second one");
+			return false;
+		}
+		if(amount > getFree())
+			return false;
+		reserved.put(name, amount);
+		used += amount;
+		return true;
+	}
+
+	/**
+	 * Change the resources reserved by a running task; decreases always succeed
+	 * @param name The task's thread name
+	 * @param amount The new total resources for the task
+	 * @return The task's previous reservation or -1 if the change was refused (the task isn't running here or there aren't enough resources free)
+	 */
+	synchronized public int adjust(String name, int amount) {
+		Integer prev = reserved.get(name);
+		if(prev == null)
+			return -1;
+		amount = Math.max(0, amount);
+		if(amount > prev && amount - prev > getFree())
+			return -1;
+		reserved.put(name, amount);
+		used += amount - prev;
+		return prev;
+	}
+
+	/**
+	 * Put back a reservation that was changed by adjust(); never refused, even if the agent no longer has the resources free
+	 * @param name The task's thread name
+	 * @param amount The task's reservation before the change being undone
+	 * @return The reservation being replaced or -1 if the task isn't running here
+	 */
+	synchronized public int restore(String name, int amount) {
+		Integer prev = reserved.get(name);
+		if(prev == null)
+			return -1;
+		amount = Math.max(0, amount);
+		reserved.put(name, amount);
+		used += amount - prev;
+		return prev;
+	}
+
+	/**
+	 * @param name The task's thread name
+	 * @return True if the task holds a reservation
+	 */
+	synchronized boolean isReserved(String name) {
+		return reserved.containsKey(name);
+	}
+
+	/**
+	 * Release a task's reservation; does nothing if the task holds none
+	 * @param name The task's thread name
+	 */
+	synchronized void release(String name) {
+		Integer prev = reserved.remove(name);
+		if(prev != null)
+			used -= prev;
+	}
+
+	/**
+	 * @return The total resources currently reserved by running tasks
+	 */
+	synchronized public int getUsed() {
+		return used;
+	}
+
+	/**
+	 * @return The resources still available on this agent; never negative, even if agent.resources was lowered while tasks were running
+	 */
+	synchronized public int getFree() {
+		return Math.max(0, Config.get().getTotalResources() - used);
+	}
+}
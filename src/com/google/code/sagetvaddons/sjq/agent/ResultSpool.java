@@ -0,0 +1,538 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.google.code.sagetvaddons.sjq.agent.network.ServerClient;
+import com.google.code.sagetvaddons.sjq.agent.network.ServerClientPool;
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+
+/**
+ * <p>Delivers task results to the server and spools those that can't be delivered.</p>
+ * <p>
+ *    Test output, task output and task state updates are handed to a small pool of sender threads that deliver
+ *    them to the server, so task threads never block on disk or network I/O.  A task's results are sent one at a
+ *    time, in order, while different tasks' results are sent in parallel.  Results that can't be delivered are appended to
+ *    journal files under the agent's spool directory and replayed, in order, once the server can be reached again.
+ *    Each journal entry is a length prefixed, gzipped, serialized record and the journal is synced to disk once per
+ *    write.  Once a server fails, results for it go straight to the spool for a while instead of each waiting on
+ *    the server in turn.  Spooled records that still haven't been delivered after a week are dropped.
+ * </p>
+ * <p>
+ *    Once anything for a task is waiting to be sent or spooled, all later results for that same task wait behind it
+ *    so the server always sees them in the order they were produced.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class ResultSpool {
+	static private final Logger LOG = Logger.getLogger(ResultSpool.class);
+
+	static private final File SPOOL_DIR = new File(Agent.BASE_DIR, "spool");
+	static private final String JOURNAL_PREFIX = "journal-";
+	static private final String JOURNAL_SUFFIX = ".dat";
+	static private final long REPLAY_INTERVAL = 30000L;
+	static private final int MAX_REJECTS = 10;
+	static private final long MAX_AGE = 7L * 24L * 3600000L;
+	static private final int SENDERS = 8;
+	static private final long DOWN_RETRY = 10000L;
+	/**
+	 * Largest journal record read back; anything claiming to be bigger is taken to be corrupt
+	 */
+	static private final int MAX_RECORD = 64 * 1024 * 1024;
+
+	/**
+	 * The outcome of an attempt to deliver a record
+	 */
+	static private enum Outcome {
+		DELIVERED,
+		/**
+		 * The server answered but refused the record
+		 */
+		REJECTED,
+		UNREACHABLE
+	}
+
+	static enum Type {
+		LOGTEST,
+		LOGEXE,
+		UPDATE
+	}
+
+	/**
+	 * Told what became of a result handed to the spool; called from one of the spool's sender threads
+	 */
+	static interface Callback {
+		/**
+		 * @param delivered True if the result was delivered to the server or false if it was spooled (or lost)
+		 */
+		void handled(boolean delivered);
+	}
+
+	static private final class Record implements Serializable {
+		static private final long serialVersionUID = 1L;
+
+		private final Type type;
+		private final QueuedTask qt;
+		private final String output;
+		private int rejects;
+		private long created; // Zero for records spooled before records were aged
+		private transient QueuedTask base;
+		private transient Callback callback;
+
+		Record(Type type, QueuedTask qt, String output, QueuedTask base, Callback callback) {
+			this.type = type;
+			this.qt = qt;
+			this.output = output;
+			this.base = base;
+			this.callback = callback;
+			rejects = 0;
+			created = System.currentTimeMillis();
+		}
+
+		NetworkAck deliver(ServerClient clnt) {
+			switch(type) {
+			case LOGTEST: return clnt.logTestOutput(qt, output);
+			case LOGEXE: return clnt.logTaskOutput(qt, output);
+			default: return clnt.update(qt, base);
+			}
+		}
+
+		void handled(boolean delivered) {
+			if(callback != null) {
+				try {
+					callback.handled(delivered);
+				} catch(RuntimeException e) {
+					LOG.error("Result callback failed", e);
+				}
+			}
+		}
+	}
+
+	static private ResultSpool INSTANCE = null;
+	synchronized static final ResultSpool get() {
+		if(INSTANCE == null)
+			INSTANCE = new ResultSpool();
+		return INSTANCE;
+	}
+
+	static private final String genKey(QueuedTask qt) {
+		return qt.getServerHost() + ":" + qt.getServerPort() + ":" + qt.getQueueId();
+	}
+
+	private final ThreadPoolExecutor senders;
+	/**
+	 * The records of each task that have been handed to the senders but not yet delivered or spooled, in order; a
+	 * task is only in the map while one sender is working through its records
+	 */
+	private final Map<String, LinkedList<Record>> pending;
+	/**
+	 * The tasks with records in the journals; only changed while holding the journal lock
+	 */
+	private final Set<String> spooledTasks;
+	/**
+	 * When delivery to each server last failed
+	 */
+	private final Map<String, Long> downServers;
+	private final Object journalLock;
+	private long nextJournal;
+	private DataOutputStream journal;
+	private FileOutputStream journalFile;
+
+	private ResultSpool() {
+		pending = new HashMap<String, LinkedList<Record>>();
+		spooledTasks = Collections.synchronizedSet(new HashSet<String>());
+		downServers = new ConcurrentHashMap<String, Long>();
+		journalLock = new Object();
+		if(!SPOOL_DIR.isDirectory() && !SPOOL_DIR.mkdirs())
+			LOG.error("Unable to create spool dir '" + SPOOL_DIR.getAbsolutePath() + "'; undelivered results will be lost!");
+		File[] existing = listJournals();
+		nextJournal = existing.length > 0 ? getJournalId(existing[existing.length - 1]) + 1 : 0;
+		for(File f : existing)
+			for(Record r : read(f))
+				spooledTasks.add(genKey(r.qt));
+		if(spooledTasks.size() > 0)
+			LOG.warn("Found undelivered results for " + spooledTasks.size() + " task(s) in spool; they will be replayed shortly");
+
+		senders = new ThreadPoolExecutor(SENDERS, SENDERS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SJQ4ResultSender-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		senders.allowCoreThreadTimeOut(true);
+
+		Timer replayer = new Timer("SJQ4SpoolReplayer", true);
+		replayer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				replay();
+			}
+		}, REPLAY_INTERVAL, REPLAY_INTERVAL);
+	}
+
+	/**
+	 * @param qt The task to check
+	 * @return True if results for the given task are still waiting to be sent or are in the spool, in which case any new results for it must go through the spool too
+	 */
+	boolean isSpooled(QueuedTask qt) {
+		String key = genKey(qt);
+		synchronized(pending) {
+			if(pending.containsKey(key))
+				return true;
+		}
+		return spooledTasks.contains(key);
+	}
+
+	/**
+	 * Queue a result for delivery to the server, spooling it if it can't be delivered; this method never blocks
+	 * @param type The type of result
+	 * @param qt The task the result is for
+	 * @param output The output to deliver, ignored for UPDATE records
+	 * @param base The task as originally received from the server, for UPDATE records; may be null
+	 * @param callback Told whether the result was delivered or spooled; may be null
+	 */
+	void add(Type type, QueuedTask qt, String output, QueuedTask base, Callback callback) {
+		final String key = genKey(qt);
+		// Copy now; the task object may still change after this call returns
+		Record r = new Record(type, WireCodec.copy(qt), output, base, callback);
+		boolean start;
+		synchronized(pending) {
+			LinkedList<Record> records = pending.get(key);
+			start = records == null;
+			if(start) {
+				records = new LinkedList<Record>();
+				pending.put(key, records);
+			}
+			records.add(r);
+		}
+		if(start) {
+			senders.execute(new Runnable() {
+				@Override
+				public void run() {
+					send(key);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Deliver or spool a task's pending records, in order, until it has none left
+	 * @param key The task's key
+	 */
+	private void send(String key) {
+		while(true) {
+			Record r;
+			synchronized(pending) {
+				r = pending.get(key).getFirst();
+			}
+			boolean delivered = send(r);
+			boolean more;
+			synchronized(pending) {
+				LinkedList<Record> records = pending.get(key);
+				records.removeFirst();
+				more = !records.isEmpty();
+				if(!more)
+					pending.remove(key);
+			}
+			r.handled(delivered);
+			if(!more)
+				break;
+		}
+	}
+
+	/**
+	 * @return True if the record was delivered or false if it was spooled
+	 */
+	private boolean send(Record r) {
+		String key = genKey(r.qt);
+		String server = r.qt.getServerHost() + ":" + r.qt.getServerPort();
+		Long failed = downServers.get(server);
+		if(!spooledTasks.contains(key) && (failed == null || System.currentTimeMillis() - failed > DOWN_RETRY)) {
+			Outcome outcome = deliver(r);
+			if(outcome != Outcome.UNREACHABLE)
+				downServers.remove(server);
+			else
+				downServers.put(server, System.currentTimeMillis());
+			if(outcome == Outcome.DELIVERED)
+				return true;
+		}
+		LOG.warn("Spooling " + r.type + " for task " + key);
+		write(Collections.singletonList(r));
+		return false;
+	}
+
+	private void write(Collection<Record> batch) {
+		synchronized(journalLock) {
+			try {
+				if(journal == null) {
+					journalFile = new FileOutputStream(new File(SPOOL_DIR, JOURNAL_PREFIX + nextJournal++ + JOURNAL_SUFFIX), true);
+					journal = new DataOutputStream(journalFile);
+				}
+				for(Record r : batch) {
+					byte[] data = encode(r);
+					journal.writeInt(data.length);
+					journal.write(data);
+				}
+				journal.flush();
+				journalFile.getFD().sync();
+			} catch(IOException e) {
+				LOG.error("Failed to write " + batch.size() + " record(s) to the spool; these results are lost!", e);
+			}
+			// Marked while holding the lock so replay() can't prune a task between its record being written and it being marked
+			for(Record r : batch)
+				spooledTasks.add(genKey(r.qt));
+		}
+	}
+
+	/**
+	 * Try to deliver everything in the spool; records for servers that still can't be reached are kept, in order
+	 */
+	void replay() {
+		File[] journals;
+		synchronized(journalLock) {
+			journals = listJournals();
+			if(journals.length == 0)
+				return;
+			closeJournal();
+		}
+		List<Record> kept = new ArrayList<Record>();
+		Set<String> failedServers = new HashSet<String>();
+		Set<String> heldTasks = new HashSet<String>();
+		int delivered = 0;
+		long now = System.currentTimeMillis();
+		for(File f : journals) {
+			for(Record r : read(f)) {
+				if(r.created == 0)
+					r.created = now;
+				else if(now - r.created > MAX_AGE) {
+					LOG.error("Spooled " + r.type + " for task " + genKey(r.qt) + " could not be delivered for a week; dropping it!");
+					continue;
+				}
+				String server = r.qt.getServerHost() + ":" + r.qt.getServerPort();
+				String key = genKey(r.qt);
+				// A task's records stay in order, so once one is kept so is the rest of that task's; other tasks aren't held up by a rejected record
+				Outcome outcome = failedServers.contains(server) || heldTasks.contains(key) ? Outcome.UNREACHABLE : deliver(r);
+				if(outcome == Outcome.DELIVERED) {
+					downServers.remove(server);
+					++delivered;
+				} else if(r.rejects < MAX_REJECTS) {
+					kept.add(r);
+					heldTasks.add(key);
+					if(outcome == Outcome.UNREACHABLE)
+						failedServers.add(server);
+				} else
+					LOG.error("Server keeps rejecting spooled " + r.type + " for task " + key + "; dropping it!");
+			}
+		}
+		if(delivered > 0)
+			LOG.info("Delivered " + delivered + " spooled result(s)");
+		Set<String> stillSpooled = new HashSet<String>();
+		for(Record r : kept)
+			stillSpooled.add(genKey(r.qt));
+		synchronized(journalLock) {
+			// Leftovers replace the oldest journal so they stay ahead of anything spooled while we were replaying
+			File first = journals[0];
+			try {
+				if(kept.size() > 0) {
+					File tmp = new File(SPOOL_DIR, first.getName() + ".tmp");
+					FileOutputStream fos = new FileOutputStream(tmp);
+					DataOutputStream out = new DataOutputStream(fos);
+					try {
+						for(Record r : kept) {
+							byte[] data = encode(r);
+							out.writeInt(data.length);
+							out.write(data);
+						}
+						out.flush();
+						fos.getFD().sync();
+					} finally {
+						out.close();
+					}
+					if(!first.delete() || !tmp.renameTo(first))
+						throw new IOException("Unable to replace journal '" + first.getAbsolutePath() + "'");
+				} else if(!first.delete())
+					LOG.error("Unable to delete journal '" + first.getAbsolutePath() + "'");
+				for(int i = 1; i < journals.length; ++i)
+					if(!journals[i].delete())
+						LOG.error("Unable to delete journal '" + journals[i].getAbsolutePath() + "'");
+			} catch(IOException e) {
+				LOG.error("Failed to rewrite spool; some results may be delivered twice", e);
+			}
+			for(File f : listJournals())
+				if(getJournalId(f) > getJournalId(journals[journals.length - 1]))
+					for(Record r : read(f))
+						stillSpooled.add(genKey(r.qt));
+			// Senders only mark tasks while holding the lock, after their records are in a journal, so this can't drop a task being spooled
+			spooledTasks.retainAll(stillSpooled);
+		}
+	}
+
+	private Outcome deliver(final Record r) {
+		try {
+			NetworkAck ack = ServerClientPool.execute(r.qt.getServerHost(), r.qt.getServerPort(), new ServerClientPool.Request<NetworkAck>() {
+				@Override
+				public NetworkAck send(ServerClient clnt) {
+					NetworkAck ack = r.deliver(clnt);
+					// An ERR ack on a broken connection means the server was never reached, not that it refused the record
+					return clnt.isValid() ? ack : null;
+				}
+			});
+			if(ack == null)
+				return Outcome.UNREACHABLE;
+			if(ack.isOk())
+				return Outcome.DELIVERED;
+			++r.rejects;
+			return Outcome.REJECTED;
+		} catch(IOException e) {
+			LOG.debug("Server still unreachable for spooled " + r.type + " of task " + genKey(r.qt));
+			return Outcome.UNREACHABLE;
+		}
+	}
+
+	private void closeJournal() {
+		if(journal != null) {
+			try {
+				journal.close();
+			} catch(IOException e) {
+				LOG.warn("Error closing journal", e);
+			}
+			journal = null;
+			journalFile = null;
+		}
+	}
+
+	private List<Record> read(File f) {
+		List<Record> records = new ArrayList<Record>();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(f));
+			long left = f.length();
+			while(true) {
+				int len;
+				try {
+					len = in.readInt();
+				} catch(EOFException e) {
+					break;
+				}
+				left -= 4;
+				// A length that can't be right means the journal is corrupt from here on; treat it like a partial record
+				if(len < 0 || len > left || len > MAX_RECORD)
+					throw new EOFException("Invalid record length [" + len + "]");
+				byte[] data = new byte[len];
+				in.readFully(data);
+				left -= len;
+				try {
+					records.add(decode(data));
+				} catch(RuntimeException e) {
+					throw new EOFException("Corrupt record [" + e + "]");
+				}
+			}
+		} catch(EOFException e) {
+			LOG.warn("Journal '" + f.getAbsolutePath() + "' ends with a partial or corrupt record; ignoring it [" + e.getMessage() + "]");
+		} catch(IOException e) {
+			LOG.error("Unable to read journal '" + f.getAbsolutePath() + "'; some spooled results may be lost!", e);
+		} finally {
+			if(in != null)
+				try { in.close(); } catch(IOException e) { LOG.warn("IOError", e); }
+		}
+		return records;
+	}
+
+	private File[] listJournals() {
+		File[] files = SPOOL_DIR.listFiles();
+		List<File> journals = new ArrayList<File>();
+		if(files != null)
+			for(File f : files)
+				if(f.getName().startsWith(JOURNAL_PREFIX) && f.getName().endsWith(JOURNAL_SUFFIX))
+					journals.add(f);
+		File[] sorted = journals.toArray(new File[journals.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				long id1 = getJournalId(o1);
+				long id2 = getJournalId(o2);
+				return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+			}
+		});
+		return sorted;
+	}
+
+	static private long getJournalId(File f) {
+		String name = f.getName();
+		return Long.parseLong(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length()));
+	}
+
+	static private byte[] encode(Record r) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes));
+		out.writeObject(r);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	static private Record decode(byte[] data) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
+		try {
+			return (Record)in.readObject();
+		} catch(ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+}
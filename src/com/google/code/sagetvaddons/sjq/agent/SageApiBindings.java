@@ -0,0 +1,158 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.Bindings;
+
+/**
+ * <p>The read only, shared bindings that expose the sagex API facades to SJQ scripts.</p>
+ * <p>
+ *    The facades are stateless (every call goes through the current SageAPI provider) so one instance of each is
+ *    shared by every script run in the JVM.  Each facade is only created the first time a script asks for it.
+ *    ScriptRunner installs these bindings as the global scope and puts the per task values in the engine scope.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class SageApiBindings extends AbstractMap<String, Object> implements Bindings {
+
+	static private final Map<String, Class<?>> APIS = new LinkedHashMap<String, Class<?>>();
+	static {
+		APIS.put("AiringAPI", sagex.api.AiringAPI.class);
+		APIS.put("AlbumAPI", sagex.api.AlbumAPI.class);
+		APIS.put("CaptureDeviceAPI", sagex.api.CaptureDeviceAPI.class);
+		APIS.put("CaptureDeviceInputAPI", sagex.api.CaptureDeviceInputAPI.class);
+		APIS.put("ChannelAPI", sagex.api.ChannelAPI.class);
+		APIS.put("Configuration", sagex.api.Configuration.class);
+		APIS.put("Database", sagex.api.Database.class);
+		APIS.put("FavoriteAPI", sagex.api.FavoriteAPI.class);
+		APIS.put("Global", sagex.api.Global.class);
+		APIS.put("LocatorAPI", sagex.api.LocatorAPI.class);
+		APIS.put("MediaFileAPI", sagex.api.MediaFileAPI.class);
+		APIS.put("MediaPlayerAPI", sagex.api.MediaPlayerAPI.class);
+		APIS.put("PlaylistAPI", sagex.api.PlaylistAPI.class);
+		APIS.put("PluginAPI", sagex.api.PluginAPI.class);
+		APIS.put("SeriesInfoAPI", sagex.api.SeriesInfoAPI.class);
+		APIS.put("ShowAPI", sagex.api.ShowAPI.class);
+		APIS.put("SystemMessageAPI", sagex.api.SystemMessageAPI.class);
+		APIS.put("TranscodeAPI", sagex.api.TranscodeAPI.class);
+		APIS.put("TVEditorialAPI", sagex.api.TVEditorialAPI.class);
+		APIS.put("UserRecordAPI", sagex.api.UserRecordAPI.class);
+		APIS.put("Utility", sagex.api.Utility.class);
+		APIS.put("WidgetAPI", sagex.api.WidgetAPI.class);
+	}
+
+	static private SageApiBindings INSTANCE = null;
+	synchronized static final SageApiBindings get() {
+		if(INSTANCE == null)
+			INSTANCE = new SageApiBindings();
+		return INSTANCE;
+	}
+
+	private final Map<String, Object> instances;
+
+	private SageApiBindings() {
+		instances = new HashMap<String, Object>();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return APIS.containsKey(key);
+	}
+
+	@Override
+	public Object get(Object key) {
+		Class<?> cls = APIS.get(key);
+		if(cls == null)
+			return null;
+		synchronized(instances) {
+			Object o = instances.get(key);
+			if(o == null) {
+				try {
+					o = cls.getConstructor().newInstance();
+				} catch(InvocationTargetException e) {
+					throw new RuntimeException("Unable to create " + cls.getName(), e.getCause());
+				} catch(Exception e) {
+					throw new RuntimeException("Unable to create " + cls.getName(), e);
+				}
+				instances.put((String)key, o);
+			}
+			return o;
+		}
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		throw new UnsupportedOperationException("The sagex API bindings are read only!");
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends Object> toMerge) {
+		throw new UnsupportedOperationException("The sagex API bindings are read only!");
+	}
+
+	@Override
+	public Object remove(Object key) {
+		throw new UnsupportedOperationException("The sagex API bindings are read only!");
+	}
+
+	@Override
+	public int size() {
+		return APIS.size();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				final Iterator<String> keys = Collections.unmodifiableSet(APIS.keySet()).iterator();
+				return new Iterator<Map.Entry<String, Object>>() {
+					@Override
+					public boolean hasNext() {
+						return keys.hasNext();
+					}
+
+					@Override
+					public Map.Entry<String, Object> next() {
+						String key = keys.next();
+						return new SimpleImmutableEntry<String, Object>(key, get(key));
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException("The sagex API bindings are read only!");
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return APIS.size();
+			}
+		};
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>Caches compiled scripts so a script is only compiled once per change instead of once per run.</p>
+ * <p>
+ *    Entries are keyed by the absolute path of the script and are only reused while the file's last modified time
+ *    and size are unchanged.  The least recently used entries are evicted once either the number of scripts or the
+ *    total size of their sources exceeds the limits.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class ScriptCache {
+	static private final Logger LOG = Logger.getLogger(ScriptCache.class);
+
+	static private final int MAX_SCRIPTS = 64;
+	static private final long MAX_SOURCE_BYTES = 4L * 1024L * 1024L;
+
+	static private ScriptCache INSTANCE = null;
+	synchronized static final ScriptCache get() {
+		if(INSTANCE == null)
+			INSTANCE = new ScriptCache();
+		return INSTANCE;
+	}
+
+	static private final class Entry {
+		private final ScriptEngine engine;
+		private final long lastModified;
+		private final long size;
+		private final CompiledScript compiled;
+
+		private Entry(ScriptEngine engine, long lastModified, long size, CompiledScript compiled) {
+			this.engine = engine;
+			this.lastModified = lastModified;
+			this.size = size;
+			this.compiled = compiled;
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> cache;
+	private long cachedBytes;
+
+	private ScriptCache() {
+		cache = new LinkedHashMap<String, Entry>(16, 0.75F, true);
+		cachedBytes = 0;
+	}
+
+	/**
+	 * Get the compiled form of a script, compiling it if it isn't cached or has changed since it was cached
+	 * @param script The script file
+	 * @param engine The engine that will run the script
+	 * @return The compiled script or null if the engine doesn't support compilation, in which case the caller must eval the source itself
+	 * @throws FileNotFoundException If the script does not exist
+	 * @throws IOException If there was an error reading the script
+	 * @throws ScriptException If the script failed to compile
+	 */
+	synchronized CompiledScript getCompiled(File script, ScriptEngine engine) throws IOException, ScriptException {
+		if(!(engine instanceof Compilable))
+			return null;
+		if(!script.isFile())
+			throw new FileNotFoundException(script.getAbsolutePath());
+		String path = script.getAbsolutePath();
+		long lastModified = script.lastModified();
+		long size = script.length();
+		Entry e = cache.get(path);
+		if(e != null && e.engine == engine && e.lastModified == lastModified && e.size == size)
+			return e.compiled;
+		if(e != null)
+			remove(path);
+		FileReader reader = new FileReader(script);
+		CompiledScript compiled;
+		try {
+			compiled = ((Compilable)engine).compile(reader);
+		} finally {
+			try { reader.close(); } catch(IOException x) { LOG.warn("IOError", x); }
+		}
+		if(size <= MAX_SOURCE_BYTES) {
+			cache.put(path, new Entry(engine, lastModified, size, compiled));
+			cachedBytes += size;
+			evict();
+		}
+		if(LOG.isDebugEnabled())
+			LOG.debug("Compiled '" + path + "'; " + cache.size() + " script(s) cached");
+		return compiled;
+	}
+
+	private void remove(String path) {
+		Entry e = cache.remove(path);
+		if(e != null)
+			cachedBytes -= e.size;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> itr = cache.entrySet().iterator();
+		while(itr.hasNext() && (cache.size() > MAX_SCRIPTS || cachedBytes > MAX_SOURCE_BYTES)) {
+			cachedBytes -= itr.next().getValue().size;
+			itr.remove();
+		}
+	}
+}
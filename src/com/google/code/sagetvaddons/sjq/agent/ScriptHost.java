@@ -0,0 +1,184 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+import com.google.code.sagetvaddons.sjq.agent.ProcessRunner.ExeResult;
+
+/**
+ * <p>A long lived JVM that runs SJQ scripts on behalf of the agent.</p>
+ * <p>
+ *    The host listens on a loopback port, which it announces on stdout, and runs one script job per connection,
+ *    one at a time.  Jobs must start with the token the host was started with.  The agent decides how many hosts
+ *    to run and kills a host outright on timeout or kill request; a host that dies is simply replaced, so a
+ *    misbehaving script can never take down the agent.
+ * </p>
+ * <p>
+ *    While a job runs the host sends a HEARTBEAT byte every HEARTBEAT_INTERVAL millis, then a RESULT byte followed
+ *    by the job's rc and output.  Anything a script throws is reported as a result (rc -1) so a job always gets an
+ *    answer, and the agent treats a host that goes quiet for too long as dead even if the script has no time limit.
+ *    The agent copies the output into a TaskOutput as it reads it, so a chatty script is held to agent.maxoutput just
+ *    like a forked one.  A connection that doesn't send its job within JOB_TIMEOUT is dropped.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class ScriptHost {
+	static private final Logger LOG = Logger.getLogger(ScriptHost.class);
+
+	/**
+	 * The line printed to stdout, followed by the port number, once the host is ready to accept jobs
+	 */
+	static final String READY_MSG = "SJQ4_SCRIPT_HOST_PORT=";
+
+	static final int HEARTBEAT = 0;
+	static final int RESULT = 1;
+	static final long HEARTBEAT_INTERVAL = 10000L;
+	/**
+	 * How long a connection has to send its job before it's dropped
+	 */
+	static private final int JOB_TIMEOUT = 10000;
+	/**
+	 * Largest script path or argument accepted in a job
+	 */
+	static private final int MAX_STRING = 1024 * 1024;
+
+	static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] data = str.getBytes("UTF-8");
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if(len < 0 || len > MAX_STRING)
+			throw new IOException("Invalid string length [" + len + "]");
+		byte[] data = new byte[len];
+		in.readFully(data);
+		return new String(data, "UTF-8");
+	}
+
+	/**
+	 * Copy a string written by writeString() to a stream without holding all of it in memory
+	 * @param in The stream to read from
+	 * @param out The stream the string's UTF-8 bytes are written to
+	 * @throws IOException On any error
+	 */
+	static void copyString(DataInputStream in, OutputStream out) throws IOException {
+		int len = in.readInt();
+		if(len < 0)
+			throw new IOException("Invalid string length [" + len + "]");
+		byte[] buf = new byte[8192];
+		while(len > 0) {
+			int n = in.read(buf, 0, Math.min(buf.length, len));
+			if(n < 0)
+				throw new IOException("Unexpected end of stream");
+			out.write(buf, 0, n);
+			len -= n;
+		}
+	}
+
+	static public void main(String[] args) {
+		Agent.configLog4j();
+		String token = args[0];
+		ServerSocket srv = null;
+		try {
+			srv = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		} catch(IOException e) {
+			e.printStackTrace();
+			System.exit(255);
+		}
+		System.out.println(READY_MSG + srv.getLocalPort());
+		System.out.flush();
+		Timer heartbeats = new Timer("SJQ4ScriptHostHeartbeat", true);
+		while(true) {
+			Socket sock = null;
+			try {
+				sock = srv.accept();
+				sock.setSoTimeout(JOB_TIMEOUT);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+				if(!token.equals(in.readUTF())) {
+					LOG.warn("Rejecting job from " + sock.getRemoteSocketAddress() + "; invalid token");
+					continue;
+				}
+				String serverHost = in.readUTF();
+				int rmiPort = in.readInt();
+				long qId = in.readLong();
+				String script = readString(in);
+				String[] scriptArgs = new String[in.readInt()];
+				for(int i = 0; i < scriptArgs.length; ++i)
+					scriptArgs[i] = readString(in);
+				TimerTask heartbeat = new TimerTask() {
+					@Override
+					public void run() {
+						synchronized(out) {
+							try {
+								out.writeByte(HEARTBEAT);
+								out.flush();
+							} catch(IOException e) {
+								LOG.debug("Heartbeat failed; agent has gone away", e);
+								cancel();
+							}
+						}
+					}
+				};
+				heartbeats.schedule(heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL);
+				ExeResult result;
+				try {
+					result = ScriptRunner.run(serverHost, rmiPort, qId, script, scriptArgs);
+				} catch(Throwable t) {
+					LOG.error("Script '" + script + "' failed", t);
+					StringWriter trace = new StringWriter();
+					t.printStackTrace(new PrintWriter(trace));
+					result = new ExeResult(-1, "Script failed with an unexpected error!\n\n" + trace);
+				} finally {
+					heartbeat.cancel();
+				}
+				synchronized(out) {
+					out.writeByte(RESULT);
+					out.writeInt(result.getRc());
+					writeString(out, result.getOutput());
+					out.flush();
+				}
+			} catch(IOException e) {
+				LOG.error("IOError", e);
+			} catch(RuntimeException e) {
+				LOG.error("Unable to run job", e);
+			} finally {
+				if(sock != null)
+					try { sock.close(); } catch(IOException e) { LOG.warn("IOError", e); }
+			}
+		}
+	}
+
+	private ScriptHost() {}
+}
@@ -0,0 +1,246 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.code.sagetvaddons.sjq.agent.ProcessRunner.ExeResult;
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+
+/**
+ * <p>Manages the pool of warm script host JVMs (see ScriptHost).</p>
+ * <p>
+ *    Hosts are started on demand, up to the configured number, and reused for many jobs.  A host that times out,
+ *    is killed or dies is thrown away and a new one is started the next time it's needed.  If all hosts are busy
+ *    then borrow() returns null and the caller should fall back to forking a JVM for the script.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class ScriptHostPool {
+	static private final Logger LOG = Logger.getLogger(ScriptHostPool.class);
+
+	static private final int MAX_JOBS_PER_HOST = 250;
+	static private final long STARTUP_TIMEOUT = 60000L;
+	/**
+	 * How long a host may go without sending anything before it's considered hung
+	 */
+	static private final long REPLY_TIMEOUT = 3 * ScriptHost.HEARTBEAT_INTERVAL;
+
+	static private ScriptHostPool INSTANCE = null;
+	synchronized static final ScriptHostPool get() {
+		if(INSTANCE == null)
+			INSTANCE = new ScriptHostPool();
+		return INSTANCE;
+	}
+
+	/**
+	 * A single script host JVM; killing it destroys the JVM and whatever job it is running
+	 */
+	final class Host implements Killable {
+		private final Process proc;
+		private final String token;
+		private volatile int port;
+		private volatile boolean killed;
+		private int jobs;
+
+		private Host() throws IOException {
+			token = UUID.randomUUID().toString();
+			ProcessBuilder pb = new ProcessBuilder(ScriptRunner.getJavaExe(), "-cp", ScriptRunner.getClasspath(), ScriptHost.class.getName(), token);
+			pb.redirectErrorStream(true);
+			proc = pb.start();
+			port = -1;
+			killed = false;
+			jobs = 0;
+			final CountDownLatch ready = new CountDownLatch(1);
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					BufferedReader r = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+					try {
+						String line;
+						while((line = r.readLine()) != null) {
+							if(port < 0 && line.startsWith(ScriptHost.READY_MSG)) {
+								port = Integer.parseInt(line.substring(ScriptHost.READY_MSG.length()).trim());
+								ready.countDown();
+							} else
+								LOG.info("[ScriptHost] " + line);
+						}
+					} catch(IOException e) {
+						LOG.debug("Script host output closed", e);
+					} finally {
+						ready.countDown();
+						try { r.close(); } catch(IOException e) { LOG.warn("IOError", e); }
+					}
+				}
+			}, "SJQ4ScriptHostOutput");
+			t.setDaemon(true);
+			t.start();
+			try {
+				ready.await(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if(port < 0) {
+				kill();
+				throw new IOException("Script host failed to start!");
+			}
+			LOG.info("Started script host on port " + port);
+		}
+
+		@Override
+		public void kill() {
+			killed = true;
+			ProcessTree.terminate(proc, Config.get().getKillGrace() * 1000L);
+		}
+
+		private boolean isAlive() {
+			try {
+				proc.exitValue();
+				return false;
+			} catch(IllegalThreadStateException e) {
+				return true;
+			}
+		}
+
+		/**
+		 * Run a script job in this host
+		 * @param qt The task the script is being run for
+		 * @param script The script to run
+		 * @param args The script arguments
+		 * @param maxTimeMillis The max time to allow the script to run; zero or less means no limit
+		 * @param sink Where to stream the script's output to or null to only keep the tail of the output
+		 * @return The result of the script; its output is whatever wasn't delivered to the sink, up to agent.maxoutput
+		 */
+		ExeResult run(QueuedTask qt, String script, String[] args, long maxTimeMillis, TaskOutput.Sink sink) {
+			++jobs;
+			long deadline = maxTimeMillis > 0 ? System.currentTimeMillis() + maxTimeMillis : Long.MAX_VALUE;
+			Socket sock = null;
+			try {
+				sock = new Socket(InetAddress.getByName("127.0.0.1"), port);
+				sock.setSoTimeout((int)REPLY_TIMEOUT);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+				out.writeUTF(token);
+				out.writeUTF(qt.getServerHost());
+				out.writeInt(qt.getRmiPort());
+				out.writeLong(qt.getQueueId());
+				ScriptHost.writeString(out, script);
+				out.writeInt(args.length);
+				for(String arg : args)
+					ScriptHost.writeString(out, arg);
+				out.flush();
+				DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+				while(true) {
+					long left = deadline - System.currentTimeMillis();
+					if(left <= 0)
+						throw new SocketTimeoutException();
+					sock.setSoTimeout((int)Math.min(left, REPLY_TIMEOUT));
+					int msg = in.readByte();
+					if(msg == ScriptHost.RESULT)
+						break;
+					if(msg != ScriptHost.HEARTBEAT)
+						throw new IOException("Unexpected message from script host [" + msg + "]");
+				}
+				sock.setSoTimeout((int)REPLY_TIMEOUT);
+				int rc = in.readInt();
+				TaskOutput output = new TaskOutput(null, sink, Config.get().getMaxOutput());
+				ScriptHost.copyString(in, output);
+				return new ExeResult(rc, output.drain());
+			} catch(SocketTimeoutException e) {
+				kill();
+				if(System.currentTimeMillis() >= deadline)
+					return new ExeResult(-1, "*** Process killed by SJQ ***\n\nScript exceeded its max run time of " + maxTimeMillis + "ms\n");
+				LOG.error("Script host stopped responding while running '" + script + "'; killed it");
+				return new ExeResult(-1, "Script host stopped responding while running script\n");
+			} catch(IOException e) {
+				if(killed)
+					return new ExeResult(-1, "*** Process killed by SJQ ***\n\n");
+				kill();
+				LOG.error("Script host failed while running '" + script + "'", e);
+				return new ExeResult(-1, "Script host failed while running script: " + e.getMessage());
+			} finally {
+				if(sock != null)
+					try { sock.close(); } catch(IOException e) { LOG.warn("IOError", e); }
+			}
+		}
+	}
+
+	private final LinkedList<Host> idle;
+	private int hosts;
+
+	private ScriptHostPool() {
+		idle = new LinkedList<Host>();
+		hosts = 0;
+	}
+
+	/**
+	 * Get an idle script host, starting a new one if the pool isn't full yet
+	 * @return A script host reserved for the caller, which must be returned via release(), or null if all hosts are busy or none could be started
+	 */
+	Host borrow() {
+		synchronized(this) {
+			while(!idle.isEmpty()) {
+				Host h = idle.removeFirst();
+				if(h.isAlive())
+					return h;
+				--hosts;
+			}
+			if(hosts >= Config.get().getScriptHosts())
+				return null;
+			++hosts;
+		}
+		try {
+			return new Host();
+		} catch(IOException e) {
+			LOG.error("Unable to start script host", e);
+			synchronized(this) {
+				--hosts;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Return a host to the pool; hosts that were killed, died or have run too many jobs are retired instead
+	 * @param h The host being returned
+	 */
+	void release(Host h) {
+		boolean retire = h.killed || h.jobs >= MAX_JOBS_PER_HOST || !h.isAlive();
+		synchronized(this) {
+			if(!retire && hosts <= Config.get().getScriptHosts()) {
+				idle.addFirst(h);
+				return;
+			}
+			--hosts;
+		}
+		h.kill();
+	}
+}
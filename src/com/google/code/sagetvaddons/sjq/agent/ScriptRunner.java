@@ -23,8 +23,12 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.script.Bindings;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
@@ -32,7 +36,10 @@ import javax.script.ScriptException;
 import javax.script.SimpleBindings;
 import javax.script.SimpleScriptContext;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.SystemUtils;
 
 import sagex.SageAPI;
 import sagex.remote.rmi.RMISageAPI;
@@ -47,6 +54,27 @@ import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
  */
 final class ScriptRunner {
 
+	static private final ScriptEngineManager ENGINE_MGR = new ScriptEngineManager();
+	static private final Map<String, ScriptEngine> ENGINES = new HashMap<String, ScriptEngine>();
+
+	/**
+	 * Get the engine for the given script extension; engines are created once and reused for every script so
+	 * that compiled scripts stay valid between runs
+	 * @param ext The script extension, in lower case
+	 * @return The engine or null if no engine is installed for the extension
+	 */
+	static private ScriptEngine getEngine(String ext) {
+		synchronized(ENGINES) {
+			ScriptEngine engine = ENGINES.get(ext);
+			if(engine == null) {
+				engine = ENGINE_MGR.getEngineByExtension(ext);
+				if(engine != null)
+					ENGINES.put(ext, engine);
+			}
+			return engine;
+		}
+	}
+
 	private String script;
 	private QueuedTask qt;
 	private String[] args;
@@ -63,35 +91,11 @@ final class ScriptRunner {
 			this.args = args;
 	}
 
-	public ExeResult exec() {
-		int lastDot = script.lastIndexOf('.');
-		String ext = script.substring(lastDot + 1);
-		if(lastDot == -1 || ext.length() == 0)
-			return new ExeResult(-1, "Invalid script extension! [" + script + "]");
-		ext = ext.toLowerCase();
+	/**
+	 * @return A new context for running the script, with the task's bindings in the engine scope and the sagex APIs in the global scope
+	 */
+	ScriptContext createContext() {
 		Bindings bindings = new SimpleBindings();
-		bindings.put("AiringAPI",new sagex.api.AiringAPI());
-		bindings.put("AlbumAPI",new sagex.api.AlbumAPI());
-		bindings.put("CaptureDeviceAPI", new sagex.api.CaptureDeviceAPI());
-		bindings.put("CaptureDeviceInputAPI", new sagex.api.CaptureDeviceInputAPI());
-		bindings.put("ChannelAPI",new sagex.api.ChannelAPI());
-		bindings.put("Configuration",new sagex.api.Configuration());
-		bindings.put("Database",new sagex.api.Database());
-		bindings.put("FavoriteAPI",new sagex.api.FavoriteAPI());
-		bindings.put("Global", new sagex.api.Global());
-		bindings.put("LocatorAPI", new sagex.api.LocatorAPI());
-		bindings.put("MediaFileAPI", new sagex.api.MediaFileAPI());
-		bindings.put("MediaPlayerAPI",new sagex.api.MediaPlayerAPI());
-		bindings.put("PlaylistAPI",new sagex.api.PlaylistAPI());
-		bindings.put("PluginAPI", new sagex.api.PluginAPI());
-		bindings.put("SeriesInfoAPI",new sagex.api.SeriesInfoAPI());
-		bindings.put("ShowAPI",new sagex.api.ShowAPI());
-		bindings.put("SystemMessageAPI", new sagex.api.SystemMessageAPI());
-		bindings.put("TranscodeAPI",new sagex.api.TranscodeAPI());
-		bindings.put("TVEditorialAPI",new sagex.api.TVEditorialAPI());
-		bindings.put("UserRecordAPI", new sagex.api.UserRecordAPI());
-		bindings.put("Utility",new sagex.api.Utility());
-		bindings.put("WidgetAPI",new sagex.api.WidgetAPI());
 		bindings.put("SJQ4_METADATA", qt.getMetadata());
 		bindings.put("SJQ4_SCRIPT", script);
 		bindings.put("SJQ4_ARGS", args);
@@ -100,9 +104,19 @@ final class ScriptRunner {
 		context.setWriter(new StringWriter());
 		context.setErrorWriter(new StringWriter());
 		context.setReader(new StringReader(""));
+		context.setBindings(SageApiBindings.get(), ScriptContext.GLOBAL_SCOPE);
 		context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
-		ScriptEngineManager factory = new ScriptEngineManager();
-		ScriptEngine engine = factory.getEngineByExtension(ext);
+		return context;
+	}
+
+	public ExeResult exec() {
+		int lastDot = script.lastIndexOf('.');
+		String ext = script.substring(lastDot + 1);
+		if(lastDot == -1 || ext.length() == 0)
+			return new ExeResult(-1, "Invalid script extension! [" + script + "]");
+		ext = ext.toLowerCase();
+		ScriptContext context = createContext();
+		ScriptEngine engine = getEngine(ext);
 		if(engine == null)
 			return new ExeResult(-1, "Unsupported script extension '" + ext + "'; maybe you need to install a scripting engine for this language?");
 		FileReader reader = null;
@@ -110,8 +124,15 @@ final class ScriptRunner {
 		Throwable t = null;
 		StringBuilder output = new StringBuilder();
 		try {
-			reader = new FileReader(new File(script));
-			Object o = engine.eval(reader, context);
+			File scriptFile = new File(script);
+			CompiledScript compiled = ScriptCache.get().getCompiled(scriptFile, engine);
+			Object o;
+			if(compiled != null)
+				o = compiled.eval(context);
+			else {
+				reader = new FileReader(scriptFile);
+				o = engine.eval(reader, context);
+			}
 			if(o == null)
 				rc = 0;
 			else if(o instanceof Integer)
@@ -121,6 +142,9 @@ final class ScriptRunner {
 		} catch (FileNotFoundException e) {
 			rc = -1;
 			t = e;
+		} catch (IOException e) {
+			rc = -1;
+			t = e;
 		} catch (ScriptException e) {
 			rc = -1;
 			t = e;
@@ -148,33 +172,74 @@ final class ScriptRunner {
 		return new ExeResult(rc, output.toString());
 	}
 	
-	static public void main(String[] args) {
-		Agent.configLog4j();
+	/**
+	 * Find the given task on the SJQ server and run a script for it
+	 * @param serverHost The host running the SageTV server the task came from
+	 * @param rmiPort The sagex RMI port of the SageTV server
+	 * @param qId The queue id of the task the script is running for
+	 * @param script The script to run
+	 * @param args The arguments to pass to the script
+	 * @return The result of running the script
+	 */
+	static ExeResult run(String serverHost, int rmiPort, long qId, String script, String[] args) {
 		try {
-			SageAPI.setProvider(new RMISageAPI(args[0], Integer.parseInt(args[1])));
+			SageAPI.setProvider(new RMISageAPI(serverHost, rmiPort));
 		} catch(Exception e) {
-			e.printStackTrace();
-			System.exit(255);
+			return new ExeResult(-1, getStackTrace(e));
 		}
-		long qId = Long.parseLong(args[2]);
 		ServerClient clnt = null;
+		QueuedTask qt = null;
 		try {
 			clnt = new ServerClient();
+			for(QueuedTask t : clnt.getActiveQueue())
+				if(t.getQueueId() == qId) {
+					qt = t;
+					break;
+				}
 		} catch (IOException e) {
-			e.printStackTrace();
-			System.exit(255);
+			return new ExeResult(-1, getStackTrace(e));
+		} finally {
+			if(clnt != null)
+				clnt.close();
 		}
-		QueuedTask qt = null;
-		for(QueuedTask t : clnt.getActiveQueue())
-			if(t.getQueueId() == qId) {
-				qt = t;
-				break;
-			}
-		ExeResult result;
 		if(qt != null)
-			result = new ScriptRunner(args[3], (String[])ArrayUtils.subarray(args, 4, args.length), qt).exec();
-		else
-			result = new ExeResult(-1, "Failed to find QueuedTask for id " + qId);
+			return new ScriptRunner(script, args, qt).exec();
+		return new ExeResult(-1, "Failed to find QueuedTask for id " + qId);
+	}
+
+	/**
+	 * @return The java executable of the running JVM, used to launch script JVMs
+	 */
+	static String getJavaExe() {
+		String javaExe = System.getProperty("java.home") + "/bin/java";
+		if(SystemUtils.IS_OS_WINDOWS)
+			javaExe = javaExe.concat(".exe");
+		return javaExe;
+	}
+
+	/**
+	 * @return The classpath required to run scripts in a separate JVM
+	 */
+	@SuppressWarnings("unchecked")
+	static String getClasspath() {
+		Collection<?> jars;
+		if(SageAPI.isRemote()) {
+			jars = FileUtils.listFiles(new File("../lib"), new String[] {"jar"}, false);
+			jars.addAll(FileUtils.listFiles(new File("../engines"), new String[] {"jar"}, false));
+		} else
+			jars = FileUtils.listFiles(new File("JARs"), new String[] {"jar"}, false);
+		return StringUtils.join(jars, SystemUtils.PATH_SEPARATOR);
+	}
+
+	static private String getStackTrace(Throwable t) {
+		StringWriter stacktrace = new StringWriter();
+		t.printStackTrace(new PrintWriter(stacktrace));
+		return stacktrace.toString();
+	}
+
+	static public void main(String[] args) {
+		Agent.configLog4j();
+		ExeResult result = run(args[0], Integer.parseInt(args[1]), Long.parseLong(args[2]), args[3], (String[])ArrayUtils.subarray(args, 4, args.length));
 		System.out.println(result.getOutput());
 		if(result.getRc() < 0)
 			System.exit(255);
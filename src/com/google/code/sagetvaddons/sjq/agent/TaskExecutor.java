@@ -0,0 +1,233 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+import com.google.code.sagetvaddons.sjq.shared.Task;
+
+/**
+ * Runs assigned tasks on a shared pool of worker threads and refuses any task that would push the agent
+ * past its configured limits, regardless of what the server believes is free on this agent.
+ * @author dbattams
+ *
+ */
+public final class TaskExecutor {
+	static private final Logger LOG = Logger.getLogger(TaskExecutor.class);
+	static private final String IDLE_THREAD_PREFIX = "SJQ4Worker-";
+	static private final long IDLE_TIMEOUT = 60L;
+
+	static private TaskExecutor INSTANCE = null;
+	synchronized static public final TaskExecutor get() {
+		if(INSTANCE == null)
+			INSTANCE = new TaskExecutor();
+		return INSTANCE;
+	}
+
+	private final ThreadPoolExecutor pool;
+	private final Map<String, Integer> running;
+	private int totalRunning;
+
+	private TaskExecutor() {
+		running = new HashMap<String, Integer>();
+		totalRunning = 0;
+		// Admission control keeps the number of tasks within agent.maxtasks, so the queue only ever holds a task
+		// whose slot was freed before its worker thread got back to the pool
+		int size = getPoolSize(Config.get().getMaxTasks());
+		pool = new ThreadPoolExecutor(size, size, IDLE_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, IDLE_THREAD_PREFIX + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		Config.get().addListener(new Config.Listener() {
+			@Override
+			public void configChanged(Config.Diff diff) {
+				resize(Config.get().getMaxTasks());
+			}
+		});
+	}
+
+	static private int getPoolSize(int maxTasks) {
+		return maxTasks > 0 ? maxTasks : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Resize the worker pool after agent.maxtasks has changed
+	 */
+	synchronized private void resize(int maxTasks) {
+		int size = getPoolSize(maxTasks);
+		if(size == pool.getMaximumPoolSize())
+			return;
+		// The core size can never exceed the max size so the order of the updates depends on which way the pool is going
+		if(size > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		} else {
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		}
+		LOG.info("Task worker pool resized to " + (maxTasks > 0 ? String.valueOf(size) : "unlimited") + " thread(s)");
+	}
+
+	/**
+	 * Attempt to start the given task on this agent
+	 * @param qt The task to start
+	 * @return An OK ack if the task was accepted and started or an ERR ack describing why the task was refused
+	 */
+	public NetworkAck submit(final QueuedTask qt) {
+		final String type = qt.getId().toUpperCase();
+		final String name = ProcessRunner.genThreadName(qt);
+		long now = System.currentTimeMillis();
+		String agentSched = Config.get().getSchedule();
+		if(!CronSchedule.get(agentSched).isEnabled(now))
+			return refuse(qt, "Agent is disabled by its schedule [" + agentSched + "]" + describeNext(agentSched, now));
+		String taskSched = getSchedule(qt);
+		if(!CronSchedule.get(taskSched).isEnabled(now))
+			return refuse(qt, "Task '" + type + "' is disabled on this agent by its schedule [" + taskSched + "]" + describeNext(taskSched, now));
+		final ProcessRunner runner;
+		synchronized(this) {
+			// The server may resend an EXE it thinks was lost; a second run would share the first one's reservation and registry entry
+			if(TaskRegistry.get().lookup(name) != null || ResourceLedger.get().isReserved(name))
+				return refuse(qt, "Task " + qt.getQueueId() + " is already running on this agent");
+			int maxTasks = Config.get().getMaxTasks();
+			if(maxTasks > 0 && totalRunning >= maxTasks)
+				return refuse(qt, "Agent is already running its maximum of " + maxTasks + " task(s)");
+			int maxInstances = getMaxInstances(qt);
+			int instances = getRunning(type);
+			if(maxInstances > 0 && instances >= maxInstances)
+				return refuse(qt, "Agent is already running its maximum of " + maxInstances + " instance(s) of task '" + type + "'");
+			String overload = HostLoad.get().getOverload();
+			if(overload != null)
+				return refuse(qt, overload);
+			int required = getRequiredResources(qt);
+			if(!ResourceLedger.get().reserve(name, required))
+				return refuse(qt, "Agent does not have " + required + " resource(s) free [free=" + ResourceLedger.get().getFree() + "]");
+			acquire(type);
+			try {
+				runner = new ProcessRunner(qt);
+			} catch(RuntimeException e) {
+				ResourceLedger.get().release(name);
+				release(type);
+				LOG.error("Unable to set up task " + qt.getQueueId(), e);
+				return NetworkAck.get(NetworkAck.ERR + "Unable to set up task: " + e);
+			}
+		}
+		try {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					Thread t = Thread.currentThread();
+					String idleName = t.getName();
+					t.setName(name);
+					try {
+						runner.run();
+					} finally {
+						ResourceLedger.get().release(name);
+						release(type);
+						t.setName(idleName);
+					}
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			runner.discard();
+			ResourceLedger.get().release(name);
+			release(type);
+			LOG.error("Task executor rejected task " + qt.getQueueId(), e);
+			return NetworkAck.get(NetworkAck.ERR + "Agent is shutting down!");
+		}
+		return NetworkAck.get(NetworkAck.OK + QueuedTask.State.RUNNING.toString());
+	}
+
+	/**
+	 * @return The total number of tasks currently running on this agent
+	 */
+	synchronized public int getTotalRunning() {
+		return totalRunning;
+	}
+
+	/**
+	 * @param type The task type (task id)
+	 * @return The number of instances of the given task type currently running on this agent
+	 */
+	synchronized public int getRunning(String type) {
+		Integer count = running.get(type.toUpperCase());
+		return count != null ? count : 0;
+	}
+
+	private int getMaxInstances(QueuedTask qt) {
+		Task local = Config.get().getTask(qt.getId());
+		if(local != null)
+			return local.getMaxInstances();
+		return qt.getMaxInstances();
+	}
+
+	private String getSchedule(QueuedTask qt) {
+		Task local = Config.get().getTask(qt.getId());
+		if(local != null)
+			return local.getSchedule();
+		return qt.getSchedule();
+	}
+
+	static private String describeNext(String schedule, long now) {
+		long next = CronSchedule.get(schedule).getNextEnabled(now);
+		return next >= 0 ? "; next enabled at " + new Date(next) : "; never enabled";
+	}
+
+	private int getRequiredResources(QueuedTask qt) {
+		Task local = Config.get().getTask(qt.getId());
+		if(local != null)
+			return local.getRequiredResources();
+		return qt.getRequiredResources();
+	}
+
+	private NetworkAck refuse(QueuedTask qt, String reason) {
+		LOG.warn("Refusing task " + qt.getQueueId() + " of type '" + qt.getId() + "' from " + qt.getServerHost() + ":" + qt.getServerPort() + ": " + reason);
+		ProcessRunner.TASKS.inc(qt.getId().toUpperCase(), "refused");
+		return NetworkAck.get(NetworkAck.ERR + reason);
+	}
+
+	synchronized private void acquire(String type) {
+		running.put(type, getRunning(type) + 1);
+		++totalRunning;
+	}
+
+	synchronized private void release(String type) {
+		int count = getRunning(type) - 1;
+		if(count > 0)
+			running.put(type, count);
+		else
+			running.remove(type);
+		--totalRunning;
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Captures the output of a running process using a fixed amount of memory.</p>
+ * <p>
+ *    Output is collected into chunks; each full chunk (or a partial one that has been waiting too long) is queued for
+ *    the sink, if there is one, while the process is still running.  Chunks are sent in order from a shared pool of
+ *    sender threads, so a slow server never blocks the thread pumping the process' output.  Once a chunk can't be
+ *    delivered, or too many are waiting to be sent, streaming stops for good: every later chunk is kept in a ring
+ *    buffer that only retains the most recent output, up to the configured limit, so output never arrives out of
+ *    order.  Whatever was not delivered is returned by drain() once the process is done.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class TaskOutput extends OutputStream {
+
+	/**
+	 * Receives chunks of output while the process is still running
+	 */
+	static interface Sink {
+		/**
+		 * @param chunk The chunk of output to deliver
+		 * @return True if the chunk was delivered or false if it should be kept and returned via drain()
+		 */
+		public boolean send(String chunk);
+	}
+
+	static private final int CHUNK_SIZE = 32768;
+	static private final long MAX_CHUNK_DELAY = 60000L;
+	/**
+	 * Max chunks waiting to be sent before streaming stops and output goes to the ring buffer instead
+	 */
+	static private final int MAX_QUEUED = 4;
+	static private final String FOOTER = "------------------\n\n";
+
+	static private final ThreadPoolExecutor SENDERS = new ThreadPoolExecutor(8, 8, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "SJQ4OutputSender-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	static {
+		SENDERS.allowCoreThreadTimeOut(true);
+	}
+
+	private final String header;
+	private final Sink sink;
+	private final byte[] chunk;
+	private int chunkLen;
+	private long lastSend;
+	private final LinkedList<String> queue;
+	private boolean sending;
+	private boolean held;
+	private boolean closed;
+	private boolean started;
+	private final byte[] tail;
+	private int tailStart;
+	private int tailLen;
+	private long discarded;
+
+	/**
+	 * @param header Label written before this stream's output (i.e. the stderr marker), followed by a closing line once the stream is drained, or null for none
+	 * @param sink Where to stream output to while the process is running or null to only keep the tail of the output
+	 * @param maxRetained The maximum number of bytes of undelivered output to keep in memory
+	 */
+	TaskOutput(String header, Sink sink, int maxRetained) {
+		this.header = header;
+		this.sink = sink;
+		chunk = new byte[CHUNK_SIZE];
+		chunkLen = 0;
+		lastSend = System.currentTimeMillis();
+		queue = new LinkedList<String>();
+		sending = false;
+		held = sink == null;
+		closed = false;
+		started = false;
+		tail = new byte[Math.max(maxRetained, 0)];
+		tailStart = 0;
+		tailLen = 0;
+		discarded = 0;
+	}
+
+	@Override
+	synchronized public void write(int b) {
+		if(chunkLen == chunk.length)
+			flushChunk(false);
+		chunk[chunkLen++] = (byte)b;
+		if(b == '\n' && System.currentTimeMillis() - lastSend >= MAX_CHUNK_DELAY)
+			flushChunk(true);
+	}
+
+	@Override
+	synchronized public void write(byte[] b, int off, int len) {
+		while(len > 0) {
+			if(chunkLen == chunk.length)
+				flushChunk(false);
+			int n = Math.min(len, chunk.length - chunkLen);
+			System.arraycopy(b, off, chunk, chunkLen, n);
+			chunkLen += n;
+			off += n;
+			len -= n;
+		}
+		if(System.currentTimeMillis() - lastSend >= MAX_CHUNK_DELAY)
+			flushChunk(true);
+	}
+
+	/**
+	 * Return all output that was not delivered to the sink and stop streaming; waits for a chunk that is being sent to be delivered (or not) first
+	 * @return The undelivered output, wrapped with this stream's header, or the empty string if there is none
+	 */
+	synchronized String drain() {
+		closed = true; // No more sends once the one in progress (if any) is done
+		while(sending)
+			try {
+				wait();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		StringBuilder output = new StringBuilder();
+		// Chunks still queued were written before anything in the ring buffer
+		for(String c : queue)
+			output.append(c);
+		queue.clear();
+		if(discarded > 0)
+			output.append("*** " + discarded + " bytes of output discarded by SJQ ***\n\n");
+		if(tailLen > 0) {
+			int firstLen = Math.min(tailLen, tail.length - tailStart);
+			output.append(new String(tail, tailStart, firstLen));
+			if(firstLen < tailLen)
+				output.append(new String(tail, 0, tailLen - firstLen));
+		}
+		if(chunkLen > 0)
+			output.append(new String(chunk, 0, chunkLen));
+		chunkLen = 0;
+		tailStart = 0;
+		tailLen = 0;
+		discarded = 0;
+		held = true;
+		if(header == null)
+			return output.toString();
+		if(output.length() > 0 && !started) {
+			output.insert(0, header);
+			started = true;
+		}
+		if(!started)
+			return "";
+		started = false;
+		return output.append(FOOTER).toString();
+	}
+
+	private void flushChunk(boolean partial) {
+		int len = chunkLen;
+		if(len == 0)
+			return;
+		// Prefer to break at the end of a line so lines (and multibyte chars) aren't split across chunks
+		for(int i = chunkLen - 1; i >= 0; --i)
+			if(chunk[i] == '\n') {
+				len = i + 1;
+				break;
+			}
+		if(partial && chunk[len - 1] != '\n')
+			return;
+		lastSend = System.currentTimeMillis();
+		if(!held && queue.size() >= MAX_QUEUED)
+			held = true; // The sink can't keep up; stop streaming rather than queue output without limit
+		if(held)
+			retain(chunk, 0, len);
+		else
+			enqueue(new String(chunk, 0, len));
+		System.arraycopy(chunk, len, chunk, 0, chunkLen - len);
+		chunkLen -= len;
+	}
+
+	private void enqueue(String text) {
+		if(header != null && !started) {
+			text = header + text;
+			started = true;
+		}
+		queue.add(text);
+		if(!sending) {
+			sending = true;
+			SENDERS.execute(new Runnable() {
+				@Override
+				public void run() {
+					sendQueued();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Deliver queued chunks, in order, until the queue is empty, a chunk can't be delivered or the stream is drained; runs on a sender thread
+	 */
+	private void sendQueued() {
+		while(true) {
+			String next;
+			synchronized(this) {
+				if(closed || queue.isEmpty()) {
+					sending = false;
+					notifyAll();
+					return;
+				}
+				next = queue.getFirst();
+			}
+			boolean delivered = false;
+			try {
+				delivered = sink.send(next);
+			} finally {
+				synchronized(this) {
+					if(delivered)
+						queue.removeFirst();
+					else {
+						held = true; // This chunk and everything after it is returned by drain(), in order
+						sending = false;
+						notifyAll();
+					}
+				}
+			}
+			if(!delivered)
+				return;
+		}
+	}
+
+	private void retain(byte[] b, int off, int len) {
+		if(tail.length == 0) {
+			discarded += len;
+			return;
+		}
+		if(len > tail.length) {
+			discarded += len - tail.length;
+			off += len - tail.length;
+			len = tail.length;
+		}
+		int overflow = tailLen + len - tail.length;
+		if(overflow > 0) {
+			discarded += overflow;
+			tailStart = (tailStart + overflow) % tail.length;
+			tailLen -= overflow;
+		}
+		int end = (tailStart + tailLen) % tail.length;
+		int firstLen = Math.min(len, tail.length - end);
+		System.arraycopy(b, off, tail, end, firstLen);
+		if(firstLen < len)
+			System.arraycopy(b, off + firstLen, tail, 0, len - firstLen);
+		tailLen += len;
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>Tracks every task this agent has accepted until its results have been reported.</p>
+ * <p>
+ *    Lookups, state changes and kills never take a global lock, so server polls and kill requests can't stall task
+ *    startup (or each other).  Tasks are keyed by their thread name (see ProcessRunner.genThreadName()).
+ * </p>
+ * @author dbattams
+ *
+ */
+final public class TaskRegistry {
+	static private final Logger LOG = Logger.getLogger(TaskRegistry.class);
+
+	static public enum State {
+		QUEUED,
+		TESTING,
+		RUNNING,
+		REPORTING
+	}
+
+	/**
+	 * A registered task; the owning ProcessRunner updates it as the task moves through its phases
+	 */
+	static public final class Entry {
+		private final String name;
+		private final long started;
+		private volatile State state;
+		private volatile Killable killable;
+		private volatile boolean killed;
+
+		private Entry(String name) {
+			this.name = name;
+			started = System.currentTimeMillis();
+			state = State.QUEUED;
+			killable = null;
+			killed = false;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The time, in millis, the task was registered
+		 */
+		public long getStarted() {
+			return started;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		void setState(State state) {
+			this.state = state;
+		}
+
+		/**
+		 * @return True if a kill has been requested for this task
+		 */
+		boolean isKilled() {
+			return killed;
+		}
+
+		/**
+		 * Set the handle used to kill whatever process is currently running for the task
+		 * @param killable The kill handle or null once the process is done
+		 * @return False if the task was already killed, in which case the caller must not start its process
+		 */
+		boolean setKillable(Killable killable) {
+			this.killable = killable;
+			if(killed && killable != null) {
+				this.killable = null;
+				return false;
+			}
+			return true;
+		}
+
+		private void kill() {
+			killed = true;
+			Killable k = killable;
+			if(k != null)
+				k.kill();
+		}
+	}
+
+	static private TaskRegistry INSTANCE = null;
+	synchronized static public final TaskRegistry get() {
+		if(INSTANCE == null)
+			INSTANCE = new TaskRegistry();
+		return INSTANCE;
+	}
+
+	private final ConcurrentMap<String, Entry> tasks;
+
+	private TaskRegistry() {
+		tasks = new ConcurrentHashMap<String, Entry>();
+	}
+
+	/**
+	 * Register a newly accepted task
+	 * @param name The task's thread name
+	 * @return The registry entry for the task
+	 */
+	Entry register(String name) {
+		Entry e = new Entry(name);
+		Entry prev = tasks.put(name, e);
+		if(prev != null)
+			LOG.warn("Task '" + name + "' was registered while a previous run was still active!");
+		return e;
+	}
+
+	/**
+	 * Remove a task's entry once it's done; does nothing if the entry was already replaced or removed
+	 * @param e The entry to remove
+	 */
+	void unregister(Entry e) {
+		tasks.remove(e.getName(), e);
+	}
+
+	/**
+	 * @param name The task's thread name
+	 * @return The task's entry or null if the task is not active on this agent
+	 */
+	public Entry lookup(String name) {
+		return tasks.get(name);
+	}
+
+	/**
+	 * Kill a task and remove it from the registry; a task killed before its process starts will never start it
+	 * @param name The task's thread name
+	 * @return True if the task was active or false if it was not found
+	 */
+	boolean kill(String name) {
+		Entry e = tasks.remove(name);
+		if(e == null)
+			return false;
+		LOG.warn("Killing task '" + name + "' [state=" + e.getState() + "]");
+		e.kill();
+		return true;
+	}
+
+	/**
+	 * Kill every active task
+	 * @return The number of tasks killed
+	 */
+	int killAll() {
+		int count = 0;
+		for(String name : new ArrayList<String>(tasks.keySet()))
+			if(kill(name))
+				++count;
+		return count;
+	}
+}
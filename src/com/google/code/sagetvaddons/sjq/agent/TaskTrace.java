@@ -0,0 +1,158 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+
+/**
+ * <p>A record of the phases a task went through on this agent, with their timings and outcomes.</p>
+ * <p>
+ *    Each task's trace is written as a single line of JSON to this class' logger, which the shipped log4j config
+ *    sends to logs/sjqagent.trace.jsonl.  For example:
+ *    <pre>
+ *    {"task":42,"type":"COMSKIP","server":"sage:23347","start":1300000000000,"end":1300000125000,"ms":125000,"outcome":"COMPLETED",
+ *     "phases":[{"phase":"jvm_start","start":1300000000010,"ms":35,"outcome":"forked"},{"phase":"test","start":1300000000005,"ms":2100,"outcome":"rc=0"}, ...]}
+ *    </pre>
+ *    Phases are listed in the order they ended, so a phase that runs inside another (jvm_start within test or exe)
+ *    comes first.  All times are in milliseconds since the epoch.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class TaskTrace {
+	static private final Logger LOG = Logger.getLogger(TaskTrace.class);
+
+	/**
+	 * The metadata key the trace is attached to the task under, when agent.tracemetadata is enabled
+	 */
+	static final String METADATA_KEY = "SJQ4_TRACE";
+
+	static private final class Phase {
+		private final String name;
+		private final long start;
+		private final long end;
+		private final String outcome;
+
+		private Phase(String name, long start, long end, String outcome) {
+			this.name = name;
+			this.start = start;
+			this.end = end;
+			this.outcome = outcome;
+		}
+	}
+
+	private final QueuedTask qt;
+	private final long start;
+	private final List<Phase> phases;
+
+	TaskTrace(QueuedTask qt) {
+		this.qt = qt;
+		start = System.currentTimeMillis();
+		phases = new ArrayList<Phase>();
+	}
+
+	/**
+	 * Record a phase that has just ended
+	 * @param phase The phase name
+	 * @param start When the phase started
+	 * @param outcome How the phase ended
+	 */
+	void add(String phase, long start, String outcome) {
+		add(phase, start, System.currentTimeMillis(), outcome);
+	}
+
+	/**
+	 * Record a phase
+	 * @param phase The phase name
+	 * @param start When the phase started
+	 * @param end When the phase ended
+	 * @param outcome How the phase ended
+	 */
+	synchronized void add(String phase, long start, long end, String outcome) {
+		phases.add(new Phase(phase, start, end, outcome));
+	}
+
+	/**
+	 * @param outcome The outcome of the task so far
+	 * @return The trace as a JSON object
+	 */
+	synchronized String toJson(String outcome) {
+		long end = System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"task\":").append(qt.getQueueId());
+		sb.append(",\"type\":");
+		appendString(sb, qt.getId().toUpperCase());
+		sb.append(",\"server\":");
+		appendString(sb, qt.getServerHost() + ":" + qt.getServerPort());
+		sb.append(",\"start\":").append(start);
+		sb.append(",\"end\":").append(end);
+		sb.append(",\"ms\":").append(end - start);
+		sb.append(",\"outcome\":");
+		appendString(sb, outcome);
+		sb.append(",\"phases\":[");
+		for(int i = 0; i < phases.size(); ++i) {
+			Phase p = phases.get(i);
+			if(i > 0)
+				sb.append(',');
+			sb.append("{\"phase\":");
+			appendString(sb, p.name);
+			sb.append(",\"start\":").append(p.start);
+			sb.append(",\"ms\":").append(p.end - p.start);
+			sb.append(",\"outcome\":");
+			appendString(sb, p.outcome);
+			sb.append('}');
+		}
+		return sb.append("]}").toString();
+	}
+
+	/**
+	 * Write the trace to the trace log
+	 * @param outcome The outcome of the task
+	 */
+	void write(String outcome) {
+		if(LOG.isInfoEnabled())
+			LOG.info(toJson(outcome));
+	}
+
+	static private void appendString(StringBuilder sb, String s) {
+		if(s == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for(int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch(c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if(c < 0x20)
+					sb.append(String.format("\\u%04x", (int)c));
+				else
+					sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+}
@@ -17,13 +17,11 @@ package com.google.code.sagetvaddons.sjq.agent;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Map;
-
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.SystemUtils;
 
+import com.google.code.sagetvaddons.sjq.agent.network.AgentClient;
 import com.google.code.sagetvaddons.sjq.agent.network.ServerClient;
+import com.google.code.sagetvaddons.sjq.agent.network.ServerClientPool;
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
 import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
 
 /**
@@ -64,16 +62,17 @@ public class Tools {
 	 * @return True on success or false on any failure
 	 * @since 1355
 	 */
-	public boolean setExeArgs(String args) {
-		ServerClient sc = null;
+	public boolean setExeArgs(final String args) {
 		try {
-			sc = new ServerClient(qt.getServerHost(), qt.getServerPort());
-			return sc.setExeArgs(qt, args).isOk();
+			NetworkAck ack = ServerClientPool.execute(qt.getServerHost(), qt.getServerPort(), new ServerClientPool.Request<NetworkAck>() {
+				@Override
+				public NetworkAck send(ServerClient clnt) {
+					return clnt.setExeArgs(qt, args);
+				}
+			});
+			return ack != null && ack.isOk();
 		} catch(IOException e) {
 			return false;
-		} finally {
-			if(sc != null)
-				sc.close();
 		}
 	}
 	
@@ -87,26 +86,11 @@ public class Tools {
 	 * </p>
 	 * 
 	 * <p>
-	 *    There is a timing issue involved with the use of this method.  It is possible to increase the total resources
-	 *    being used beyond the maximum value under the following circumstances:
-	 *    
-	 *    <ul>
-	 *       <li>Server assigns Task 1 to Client A and it originally uses 50 resources (client max resources is 100)</li>
-	 *       <li>
-	 *          Task 1 dynamically calls this method to increase the used resources for this task to 90, but before the call is
-	 *          made, the server assigns Task 2 to Client A and it uses 30 resources (Client A is now using 80 resources).
-	 *       </li>
-	 *       <li>
-	 *          Now Task 1 increases its resource usage from 50 to 90.  Client A is now using 120 resources (of 100).  This is
-	 *          ok, except that a Client could temporarily be using more than its allotted resources.
-	 *       </li>
-	 *       <li>
-	 *          The opposite can happen if a task dynamically lowers its resource usage.  If the server tries to assigns a new task
-	 *          before the old one lowers its resource usage then the server will refuse to assign the task because there isn't enough
-	 *          resources.  This is ok, as well, with the side effect being that the new task will be delayed assignment until the next
-	 *          check (or possibly assigned to a different client capable of running the task).
-	 *       </li>
-	 *    </ul>
+	 *    The agent running the task checks the change against its own count of the resources in use before passing it
+	 *    on to the server.  An increase that would take the agent past its total resources is refused (and this method
+	 *    returns false), so a task can no longer push an agent over its limit by raising its usage after the server
+	 *    has assigned other tasks to it.  Decreases are always accepted and take effect on the agent immediately, even
+	 *    if the server has yet to see them.
 	 * </p>
 	 * 
 	 * <p>Example:</p>
@@ -119,16 +103,45 @@ public class Tools {
 	 * @return True on success or false on any failure
 	 * @since 1364
 	 */
-	public boolean setTaskResources(int used) {
-		ServerClient sc = null;
+	public boolean setTaskResources(final int used) {
+		int prev = reserveLocally(used, false);
+		if(prev < 0)
+			return false;
+		try {
+			NetworkAck ack = ServerClientPool.execute(qt.getServerHost(), qt.getServerPort(), new ServerClientPool.Request<NetworkAck>() {
+				@Override
+				public NetworkAck send(ServerClient clnt) {
+					return clnt.setTaskResources(qt, used);
+				}
+			});
+			if(ack != null && ack.isOk())
+				return true;
+		} catch(IOException e) {}
+		reserveLocally(prev, true); // Server didn't take the change; put back the original reservation
+		return false;
+	}
+
+	/**
+	 * Change the task's resource reservation with the local agent
+	 * @param used The new total resources for the task
+	 * @param restore True to put back a previous reservation, which the agent must not refuse
+	 * @return The task's previous reservation or -1 if the agent refused the change
+	 */
+	private int reserveLocally(int used, boolean restore) {
+		AgentClient clnt = null;
 		try {
-			sc = new ServerClient(qt.getServerHost(), qt.getServerPort());
-			return sc.setTaskResources(qt, used).isOk();
+			clnt = new AgentClient(Config.get().getPort());
+			NetworkAck ack = clnt.setTaskResources(qt, used, restore);
+			if(ack == null || !ack.isOk())
+				return -1;
+			return Integer.parseInt(ack.getMsg().trim());
 		} catch(IOException e) {
-			return false;
+			return -1;
+		} catch(NumberFormatException e) {
+			return -1;
 		} finally {
-			if(sc != null)
-				sc.close();
+			if(clnt != null)
+				clnt.close();
 		}
 	}
 	
@@ -151,20 +164,16 @@ public class Tools {
 	 *    println Tools.mapDir(MediaFileAPI.GetFileForSegment(mf, 0).getAbsolutePath())
 	 *    return 0
 	 * </pre>
+	 * <p>
+	 *    If more than one mapping applies to a path then the longest (most specific) directory wins.  On Windows, directories
+	 *    are matched without regard to case, but the case of the returned path is preserved.
+	 * </p>
 	 * @param path The path name to be remapped based on the agent.mapdir setting of the client this method is called from
 	 * @return The remapped pathname, which could be unchanged if no mapping matches the given argument
 	 * @since 1350
 	 */
 	public String mapDir(String path) {
-		Map<String, String> mapDir = Config.get().getMapDir();
-		for(String dir : mapDir.keySet()) {
-			if(FilenameUtils.wildcardMatch(path, FilenameUtils.normalizeNoEndSeparator(dir) + File.separator + "*")) {
-				if(SystemUtils.IS_OS_WINDOWS)
-					return StringUtils.replaceOnce(path.toUpperCase(), dir.toUpperCase(), mapDir.get(dir).toUpperCase());
-				return StringUtils.replaceOnce(path, dir, mapDir.get(dir));
-			}
-		}
-		return path;
+		return Config.get().getDirMapper().map(path);
 	}
 
 	/**
@@ -222,9 +231,10 @@ public class Tools {
 	 * @since 1350
 	 */
 	public String[] mapDir(String[] paths) {
+		DirMapper mapper = Config.get().getDirMapper();
 		String[] mapped = new String[paths.length];
 		for(int i = 0; i < paths.length; ++i)
-			mapped[i] = mapDir(paths[i]);
+			mapped[i] = mapper.map(paths[i]);
 		return mapped;
 	}
 
@@ -253,9 +263,10 @@ public class Tools {
 	 * @since 1350
 	 */
 	public File[] mapDir(File[] paths) {
+		DirMapper mapper = Config.get().getDirMapper();
 		File[] mapped = new File[paths.length];
 		for(int i = 0; i < paths.length; ++i)
-			mapped[i] = mapDir(paths[i]);
+			mapped[i] = new File(mapper.map(paths[i].getAbsolutePath()));
 		return mapped;
 	}
 }
@@ -0,0 +1,90 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.Watchdog;
+
+/**
+ * <p>A watchdog that, on timeout or kill, terminates the whole process tree of the exe (see ProcessTree) instead of just the exe itself.</p>
+ * <p>
+ *    A kill that arrives before the exe has started (commons-exec only hands the process over once it's launched)
+ *    is remembered and carried out as soon as the process is known, so the exe never runs untracked.  Once the tree
+ *    kill has started, the root process is left to it rather than destroyed right away, so the children still get
+ *    their grace period and can still be found from the root.
+ * </p>
+ * <p>
+ *    On Windows with Java 8 or older the pid of a process can't be found (the JVM only keeps its handle) so only
+ *    the exe itself is destroyed there; anything it started keeps running.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class TreeWatchdog extends ExecuteWatchdog {
+
+	private final ProcessUsage usage;
+	private Process process;
+	private boolean killedTree;
+	private boolean pendingKill;
+
+	/**
+	 * @param timeout The max run time of the process, in millis
+	 * @param usage If not null, measures the process' resource usage once it starts
+	 */
+	TreeWatchdog(long timeout, ProcessUsage usage) {
+		super(timeout);
+		this.usage = usage;
+		process = null;
+		killedTree = false;
+		pendingKill = false;
+	}
+
+	@Override
+	public synchronized void start(Process process) {
+		this.process = process;
+		if(usage != null)
+			usage.start(process);
+		super.start(process);
+		if(pendingKill)
+			timeoutOccured(null);
+	}
+
+	@Override
+	public synchronized void timeoutOccured(Watchdog w) {
+		if(process == null) {
+			// Not started yet; start() kills it as soon as it is
+			pendingKill = true;
+			return;
+		}
+		if(isWatching()) {
+			try {
+				process.exitValue();
+			} catch(IllegalThreadStateException e) {
+				killedTree = true;
+				ProcessTree.terminate(process, Config.get().getKillGrace() * 1000L);
+				// Don't let the super class destroy the root too; that would cut the grace period short and, on Windows, leave taskkill unable to find the tree
+				cleanUp();
+				return;
+			}
+		}
+		super.timeoutOccured(w);
+	}
+
+	@Override
+	public synchronized boolean killedProcess() {
+		return killedTree || super.killedProcess();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent;
+
+import java.util.Map;
+
+/**
+ * <p>Expands <code>$NAME</code> and <code>${NAME}</code> variable references in a string in a single pass.</p>
+ * <p>
+ *    A name is a run of letters, digits and underscores.  <code>${NAME}</code> must match a variable exactly.  For
+ *    <code>$NAME</code> the whole name is tried first and then the longest variable name that the name starts with,
+ *    so <code>$SJQ4_PATH2</code> expands <code>SJQ4_PATH2</code> if it's defined and otherwise expands
+ *    <code>SJQ4_PATH</code> followed by a literal 2.  References to undefined variables are left as is.  Values are
+ *    never expanded themselves.
+ * </p>
+ * @author dbattams
+ *
+ */
+final class VarExpander {
+
+	/**
+	 * @param str The string to expand
+	 * @param vars The variables available for expansion
+	 * @return The expanded string; the same instance if there was nothing to expand
+	 */
+	static String expand(String str, Map<String, String> vars) {
+		if(str == null || vars == null || vars.isEmpty() || str.indexOf('$') < 0)
+			return str;
+		StringBuilder out = new StringBuilder(str.length() + 32);
+		int len = str.length();
+		int i = 0;
+		boolean changed = false;
+		while(i < len) {
+			char c = str.charAt(i);
+			if(c != '$' || i + 1 >= len) {
+				out.append(c);
+				++i;
+				continue;
+			}
+			if(str.charAt(i + 1) == '{') {
+				int end = str.indexOf('}', i + 2);
+				String val = end > i + 2 ? vars.get(str.substring(i + 2, end)) : null;
+				if(val != null) {
+					out.append(val);
+					i = end + 1;
+					changed = true;
+				} else {
+					out.append(c);
+					++i;
+				}
+				continue;
+			}
+			int end = i + 1;
+			while(end < len && isNameChar(str.charAt(end)))
+				++end;
+			int matched = -1;
+			String val = null;
+			for(int j = end; j > i + 1 && val == null; --j) {
+				val = vars.get(str.substring(i + 1, j));
+				matched = j;
+			}
+			if(val != null) {
+				out.append(val);
+				i = matched;
+				changed = true;
+			} else {
+				out.append(c);
+				++i;
+			}
+		}
+		return changed ? out.toString() : str;
+	}
+
+	static private boolean isNameChar(char c) {
+		return c == '_' || Character.isLetterOrDigit(c);
+	}
+
+	private VarExpander() {}
+}
@@ -21,9 +21,9 @@ import java.io.ObjectOutputStream;
 
 import org.apache.log4j.Logger;
 
-import com.google.code.sagetvaddons.sjq.agent.ProcessRunner;
+import com.google.code.sagetvaddons.sjq.agent.TaskExecutor;
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
 import com.google.code.sagetvaddons.sjq.listener.Command;
-import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
 import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
 
 /**
@@ -47,17 +47,9 @@ public class Exe extends Command {
 	 */
 	@Override
 	public void execute() throws IOException {
-		try {
-			QueuedTask qt = (QueuedTask)getIn().readObject();
-			LOG.info("Received task " + qt.getQueueId() + " of type '" + qt.getId() + "' from " + qt.getServerHost() + ":" + qt.getServerPort() + "...");
-			Thread t = new Thread(new ProcessRunner(qt));
-			t.setName(ProcessRunner.genThreadName(qt));
-			t.setDaemon(true);
-			t.start();
-			getOut().writeObject(NetworkAck.get(NetworkAck.OK + QueuedTask.State.RUNNING.toString()));
-			getOut().flush();
-		} catch (ClassNotFoundException e) {
-			throw new IOException(e);
-		}
+		QueuedTask qt = WireCodec.readQueuedTask(getIn());
+		LOG.info("Received task " + qt.getQueueId() + " of type '" + qt.getId() + "' from " + qt.getServerHost() + ":" + qt.getServerPort() + "...");
+		getOut().writeObject(TaskExecutor.get().submit(qt));
+		getOut().flush();
 	}
 }
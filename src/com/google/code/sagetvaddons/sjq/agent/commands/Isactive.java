@@ -20,6 +20,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
 import com.google.code.sagetvaddons.sjq.agent.ProcessRunner;
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
 import com.google.code.sagetvaddons.sjq.listener.Command;
 import com.google.code.sagetvaddons.sjq.listener.Handler;
 import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
@@ -44,13 +45,9 @@ public class Isactive extends Command {
 	 */
 	@Override
 	public void execute() throws IOException {
-		try {
-			QueuedTask qt = (QueuedTask)getIn().readObject();
-			qt.setServerHost(Handler.SOCKET_DETAILS.get().getRemoteAddress());
-			getOut().writeObject(NetworkAck.get(NetworkAck.OK + String.valueOf(ProcessRunner.isActive(qt))));
-			getOut().flush();
-		} catch (ClassNotFoundException e) {
-			throw new IOException(e);
-		}
+		QueuedTask qt = WireCodec.readQueuedTask(getIn());
+		qt.setServerHost(Handler.SOCKET_DETAILS.get().getRemoteAddress());
+		getOut().writeObject(NetworkAck.get(NetworkAck.OK + String.valueOf(ProcessRunner.isActive(qt))));
+		getOut().flush();
 	}
 }
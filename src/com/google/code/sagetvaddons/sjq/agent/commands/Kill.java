@@ -20,6 +20,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
 import com.google.code.sagetvaddons.sjq.agent.ProcessRunner;
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
 import com.google.code.sagetvaddons.sjq.listener.Command;
 import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
 import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
@@ -43,12 +44,8 @@ public class Kill extends Command {
 	 */
 	@Override
 	public void execute() throws IOException {
-		try {
-			QueuedTask qt = (QueuedTask)getIn().readObject();
-			getOut().writeObject(NetworkAck.get(ProcessRunner.kill(ProcessRunner.genThreadName(qt)) ? NetworkAck.OK : NetworkAck.ERR + "Unable to kill specified task!"));
-			getOut().flush();
-		} catch (ClassNotFoundException e) {
-			throw new IOException(e);
-		}
+		QueuedTask qt = WireCodec.readQueuedTask(getIn());
+		getOut().writeObject(NetworkAck.get(ProcessRunner.kill(ProcessRunner.genThreadName(qt)) ? NetworkAck.OK : NetworkAck.ERR + "Unable to kill specified task!"));
+		getOut().flush();
 	}
 }
@@ -0,0 +1,58 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *       
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.commands;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
+import com.google.code.sagetvaddons.sjq.listener.Command;
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
+
+/**
+ * <p>Negotiate the payload encoding used by the rest of the commands on this connection.</p>
+ * <p>
+ *    The peer sends the highest WireCodec version it supports (int); the agent replies with the version that will
+ *    be used (int), which is the lower of the two, followed by a NetworkAck.  Peers that never send this command
+ *    keep using Java serialization.
+ * </p>
+ * @author dbattams
+ *
+ */
+public class Proto extends Command {
+
+	/**
+	 * @param in
+	 * @param out
+	 */
+	public Proto(ObjectInputStream in, ObjectOutputStream out) {
+		super(in, out);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.google.code.sagetvaddons.sjq.listener.Command#execute()
+	 */
+	@Override
+	public void execute() throws IOException {
+		int offered = getIn().readInt();
+		int version = Math.max(WireCodec.SERIALIZED, Math.min(offered, WireCodec.VERSION));
+		getOut().writeInt(version);
+		getOut().writeObject(NetworkAck.get(NetworkAck.OK));
+		getOut().flush();
+		WireCodec.setPeerVersion(version);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *       
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.commands;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+
+import org.apache.log4j.Logger;
+
+import com.google.code.sagetvaddons.sjq.agent.ProcessRunner;
+import com.google.code.sagetvaddons.sjq.agent.ResourceLedger;
+import com.google.code.sagetvaddons.sjq.listener.Command;
+import com.google.code.sagetvaddons.sjq.listener.Handler;
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
+
+/**
+ * <p>Change the resources reserved by a task running on this agent; sent by Tools.setTaskResources().</p>
+ * <p>
+ *    Request: the task's server host (UTF), server port (int) and queue id (long), then its new total resources (int)
+ *    and whether the change is a forced restore (boolean).  A forced restore puts back a reservation after the server
+ *    refused a change and is never refused for lack of free resources.  Only accepted from this host.
+ * </p>
+ * <p>
+ *    Response: an OK NetworkAck whose message is the task's previous reservation or an ERR NetworkAck if the task
+ *    isn't running here or the agent doesn't have the resources free.
+ * </p>
+ * @author dbattams
+ *
+ */
+public class Settaskres extends Command {
+	static private final Logger LOG = Logger.getLogger(Settaskres.class);
+
+	/**
+	 * @param in
+	 * @param out
+	 */
+	public Settaskres(ObjectInputStream in, ObjectOutputStream out) {
+		super(in, out);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.google.code.sagetvaddons.sjq.listener.Command#execute()
+	 */
+	@Override
+	public void execute() throws IOException {
+		String host = getIn().readUTF();
+		int port = getIn().readInt();
+		long qId = getIn().readLong();
+		int used = getIn().readInt();
+		boolean restore = getIn().readBoolean();
+		String peer = Handler.SOCKET_DETAILS.get().getRemoteAddress();
+		NetworkAck ack;
+		if(!InetAddress.getByName(peer).isLoopbackAddress()) {
+			LOG.warn("Refusing resource change from remote host " + peer);
+			ack = NetworkAck.get(NetworkAck.ERR + "Resource changes are only accepted from the local host!");
+		} else {
+			ResourceLedger ledger = ResourceLedger.get();
+			String name = ProcessRunner.genThreadName(host, port, qId);
+			int prev = restore ? ledger.restore(name, used) : ledger.adjust(name, used);
+			if(prev >= 0) {
+				LOG.info("Resources for task " + qId + " changed from " + prev + " to " + used + " [free=" + ledger.getFree() + "]");
+				ack = NetworkAck.get(NetworkAck.OK + prev);
+			} else
+				ack = NetworkAck.get(NetworkAck.ERR + "Task " + qId + " is not running or agent does not have the resources free [free=" + ledger.getFree() + "]");
+		}
+		getOut().writeObject(ack);
+		getOut().flush();
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *       
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.commands;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import com.google.code.sagetvaddons.sjq.agent.ProcessRunner;
+import com.google.code.sagetvaddons.sjq.agent.TaskRegistry;
+import com.google.code.sagetvaddons.sjq.listener.Command;
+import com.google.code.sagetvaddons.sjq.listener.Handler;
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
+
+/**
+ * <p>Report the state of many tasks in one exchange; the batched form of ISACTIVE.</p>
+ * <p>
+ *    Request: the server's port (int), the number of tasks (int) followed by each task's queue id (long).  Tasks
+ *    are matched against the tasks this agent accepted from the requesting host on that port.
+ * </p>
+ * <p>
+ *    Response: the number of tasks (int) then, for each task in request order, its queue id (long), its state
+ *    (UTF; one of QUEUED, TESTING, RUNNING, REPORTING or the empty string if the task is not active on this agent)
+ *    and the millis since the agent accepted it (long; -1 if not active), followed by a NetworkAck.
+ * </p>
+ * @author dbattams
+ *
+ */
+public class Status extends Command {
+
+	static private final int MAX_TASKS = 4096;
+
+	/**
+	 * @param in
+	 * @param out
+	 */
+	public Status(ObjectInputStream in, ObjectOutputStream out) {
+		super(in, out);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.google.code.sagetvaddons.sjq.listener.Command#execute()
+	 */
+	@Override
+	public void execute() throws IOException {
+		String host = Handler.SOCKET_DETAILS.get().getRemoteAddress();
+		int port = getIn().readInt();
+		int count = getIn().readInt();
+		if(count < 0 || count > MAX_TASKS)
+			throw new IOException("Invalid task count: " + count);
+		long[] ids = new long[count];
+		for(int i = 0; i < count; ++i)
+			ids[i] = getIn().readLong();
+		long now = System.currentTimeMillis();
+		TaskRegistry registry = TaskRegistry.get();
+		getOut().writeInt(count);
+		for(long qId : ids) {
+			TaskRegistry.Entry e = registry.lookup(ProcessRunner.genThreadName(host, port, qId));
+			getOut().writeLong(qId);
+			if(e != null) {
+				getOut().writeUTF(e.getState().toString());
+				getOut().writeLong(now - e.getStarted());
+			} else {
+				getOut().writeUTF("");
+				getOut().writeLong(-1L);
+			}
+		}
+		getOut().writeObject(NetworkAck.get(NetworkAck.OK));
+		getOut().flush();
+	}
+}
@@ -20,6 +20,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
 import com.google.code.sagetvaddons.sjq.agent.Config;
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
 import com.google.code.sagetvaddons.sjq.listener.Command;
 import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
 import com.google.code.sagetvaddons.sjq.shared.Client;
@@ -38,10 +39,14 @@ public class Update extends Command {
 	public void execute() throws IOException {
 		Config cfg = Config.get();
 		Client clnt = null;
-		try {
-			clnt = (Client)getIn().readObject();
-		} catch (ClassNotFoundException e) {
-			throw new IOException(e);
+		if(WireCodec.getPeerVersion() >= 1)
+			clnt = WireCodec.readClient(getIn(), true);
+		else {
+			try {
+				clnt = (Client)getIn().readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
 		}
 		getOut().writeObject(NetworkAck.get(cfg.save(clnt) ? NetworkAck.OK : NetworkAck.ERR));
 		getOut().flush();
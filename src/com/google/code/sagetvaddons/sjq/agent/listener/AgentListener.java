@@ -0,0 +1,263 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.listener;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.google.code.sagetvaddons.sjq.agent.Config;
+import com.google.code.sagetvaddons.sjq.agent.Metrics;
+import com.google.code.sagetvaddons.sjq.agent.network.WireCodec;
+import com.google.code.sagetvaddons.sjq.listener.Command;
+import com.google.code.sagetvaddons.sjq.listener.CommandFactory;
+import com.google.code.sagetvaddons.sjq.listener.Handler;
+import com.google.code.sagetvaddons.sjq.listener.SocketDetails;
+
+/**
+ * <p>The agent's command listener.</p>
+ * <p>
+ *    Speaks exactly the same protocol as the sjq-listener Listener/Handler pair (and dispatches to the same command
+ *    classes), but bounds the resources a misbehaving peer can consume:
+ *    <ul>
+ *       <li>Connections are handled by a bounded pool of threads instead of a new thread per connection</li>
+ *       <li>A small control lane takes over when the pool is full, but only runs PING, KILL and status commands</li>
+ *       <li>A single peer may be limited to part of the pool (agent.maxperserver); its extra connections are sent to the control lane</li>
+ *       <li>Connections that sit idle, or stall in the middle of a command, are dropped after the socket timeout</li>
+ *       <li>Connections beyond all of the above are closed right away; they wait in the accept backlog until then</li>
+ *    </ul>
+ * </p>
+ * @author dbattams
+ *
+ */
+public final class AgentListener {
+	static private final Logger LOG = Logger.getLogger(AgentListener.class);
+
+	static private final String CMD_QUIT = "QUIT";
+	static private final Set<String> CONTROL_CMDS = new HashSet<String>(Arrays.asList(new String[] {"PING", "ISACTIVE", "STATUS", "KILL", "KILLALL", "PROTO", "SETTASKRES", CMD_QUIT}));
+	static private final int CONTROL_THREADS = 2;
+	static private final int CONTROL_TIMEOUT = 10000;
+	static private final int BACKLOG = 50;
+
+	static private final Metrics.Histogram COMMAND_TIME = Metrics.get().histogram("command_seconds", "Time taken to run commands received from servers, by command", Metrics.TIME_BUCKETS, "command");
+
+	private final String cmdPkg;
+	private final String logPkg;
+	private final int port;
+	private final int timeout;
+	private final int maxPerPeer;
+	private final ThreadPoolExecutor handlers;
+	private final ThreadPoolExecutor control;
+	private final Map<String, Integer> peers;
+
+	/**
+	 * @param cmdPkg The package holding the command classes
+	 * @param port The port to listen on
+	 * @param logPkg The logger prefix passed on to the command classes
+	 */
+	public AgentListener(String cmdPkg, int port, String logPkg) {
+		Config cfg = Config.get();
+		this.cmdPkg = cmdPkg;
+		this.logPkg = logPkg;
+		this.port = port;
+		int maxConns = Math.max(1, cfg.getMaxConnections());
+		timeout = Math.max(1, cfg.getSocketTimeout()) * 1000;
+		// Usually there's only the one SJQ server so, unless configured otherwise, it may use the whole pool
+		maxPerPeer = cfg.getMaxPerServer() > 0 ? Math.min(cfg.getMaxPerServer(), maxConns) : maxConns;
+		handlers = createPool("SJQ4Handler-", maxConns);
+		control = createPool("SJQ4Control-", CONTROL_THREADS);
+		peers = new HashMap<String, Integer>();
+	}
+
+	static private ThreadPoolExecutor createPool(final String prefix, int size) {
+		return new ThreadPoolExecutor(0, size, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Accept connections until the accepting thread is interrupted; does not return until then
+	 * @throws IOException If the listener socket could not be opened
+	 */
+	public void init() throws IOException {
+		ServerSocket srv = new ServerSocket(port, BACKLOG);
+		LOG.info("Listening for commands on port " + port);
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				Socket sock;
+				try {
+					sock = srv.accept();
+				} catch(IOException e) {
+					if(srv.isClosed())
+						throw e;
+					// Most likely out of file handles; back off instead of spinning
+					LOG.error("Failed to accept connection", e);
+					try {
+						Thread.sleep(1000);
+					} catch(InterruptedException x) {
+						break;
+					}
+					continue;
+				}
+				dispatch(sock);
+			}
+		} finally {
+			srv.close();
+			handlers.shutdownNow();
+			control.shutdownNow();
+		}
+	}
+
+	private void dispatch(Socket sock) {
+		String peer = sock.getInetAddress().getHostAddress();
+		try {
+			// Replies are small writes; without this each one waits on the peer's delayed ACK (~40ms)
+			sock.setTcpNoDelay(true);
+		} catch(IOException e) {
+			LOG.debug("Unable to set TCP_NODELAY for " + peer, e);
+		}
+		if(acquirePeer(peer) <= maxPerPeer) {
+			try {
+				handlers.execute(new Connection(sock, peer, false));
+				return;
+			} catch(RejectedExecutionException e) {
+				LOG.debug("All handlers busy; trying control lane for " + peer);
+			}
+		} else
+			LOG.debug(peer + " already holds its max of " + maxPerPeer + " connection(s); trying control lane");
+		try {
+			control.execute(new Connection(sock, peer, true));
+		} catch(RejectedExecutionException e) {
+			LOG.warn("Dropping connection from " + peer + "; agent is busy");
+			releasePeer(peer);
+			close(sock);
+		}
+	}
+
+	/**
+	 * @param peer The peer address
+	 * @return The number of connections the peer holds, including this one
+	 */
+	synchronized private int acquirePeer(String peer) {
+		Integer count = peers.get(peer);
+		int n = (count != null ? count : 0) + 1;
+		peers.put(peer, n);
+		return n;
+	}
+
+	synchronized private void releasePeer(String peer) {
+		Integer count = peers.get(peer);
+		if(count == null || count <= 1)
+			peers.remove(peer);
+		else
+			peers.put(peer, count - 1);
+	}
+
+	static private void close(Socket sock) {
+		try { sock.close(); } catch(IOException e) { LOG.warn("IOError", e); }
+	}
+
+	/**
+	 * Handles one connection: the same command loop as the sjq-listener Handler
+	 */
+	private final class Connection implements Runnable {
+		private final Socket sock;
+		private final String peer;
+		private final boolean controlOnly;
+
+		private Connection(Socket sock, String peer, boolean controlOnly) {
+			this.sock = sock;
+			this.peer = peer;
+			this.controlOnly = controlOnly;
+		}
+
+		@Override
+		public void run() {
+			Handler.SOCKET_DETAILS.set(new SocketDetails(sock.getLocalAddress().getHostAddress(), sock.getLocalPort(), sock.getInetAddress().getHostAddress(), sock.getPort()));
+			WireCodec.setPeerVersion(WireCodec.SERIALIZED);
+			int idleTimeout = controlOnly ? Math.min(timeout, CONTROL_TIMEOUT) : timeout;
+			ObjectInputStream in = null;
+			ObjectOutputStream out = null;
+			try {
+				sock.setSoTimeout(idleTimeout);
+				out = new ObjectOutputStream(sock.getOutputStream());
+				out.flush();
+				in = new ObjectInputStream(sock.getInputStream());
+				String cmd = null;
+				while(cmd == null || !cmd.toUpperCase().equals(CMD_QUIT)) {
+					sock.setSoTimeout(idleTimeout);
+					cmd = in.readUTF();
+					sock.setSoTimeout(timeout);
+					LOG.info("CMD: " + cmd + " :: PEER: " + peer);
+					if(controlOnly && !CONTROL_CMDS.contains(cmd.toUpperCase())) {
+						out.writeUTF("ERR|Agent is busy; command refused [" + cmd + "]");
+						out.flush();
+						continue;
+					}
+					Command c = CommandFactory.get(cmd, cmdPkg, in, out, logPkg);
+					if(c != null) {
+						if(!cmd.toUpperCase().equals(CMD_QUIT)) {
+							out.writeUTF("OK |");
+							out.flush();
+						}
+						long start = System.currentTimeMillis();
+						c.execute();
+						COMMAND_TIME.observeSince(start, cmd.toUpperCase());
+					} else {
+						out.writeUTF("ERR|Unrecognized command [" + cmd + "]");
+						out.flush();
+					}
+				}
+			} catch(SocketTimeoutException e) {
+				LOG.info("Dropping connection from " + peer + "; timed out");
+			} catch(IOException e) {
+				LOG.error("IOError", e);
+			} finally {
+				if(in != null)
+					try { in.close(); } catch(IOException e) { LOG.error("IOError", e); }
+				if(out != null)
+					try { out.close(); } catch(IOException e) { LOG.error("IOError", e); }
+				close(sock);
+				releasePeer(peer);
+				Handler.SOCKET_DETAILS.remove();
+				WireCodec.setPeerVersion(WireCodec.SERIALIZED);
+			}
+		}
+	}
+}
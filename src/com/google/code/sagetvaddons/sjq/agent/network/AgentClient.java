@@ -0,0 +1,74 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.network;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import com.google.code.sagetvaddons.sjq.listener.ListenerClient;
+import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+
+/**
+ * A connection to the agent running on this host; used by scripts, which run outside of the agent's JVM
+ * @author dbattams
+ *
+ */
+public final class AgentClient extends ListenerClient {
+	static private final Logger LOG = Logger.getLogger(AgentClient.class);
+
+	/**
+	 * @param port The port the local agent is listening on
+	 * @throws IOException If the agent could not be reached
+	 */
+	public AgentClient(int port) throws IOException {
+		super("127.0.0.1", port, AgentClient.class.getPackage().getName());
+	}
+
+	/**
+	 * Ask the agent to change the resources reserved for a task it's running
+	 * @param qt The task
+	 * @param used The new total resources for the task
+	 * @param restore True if this puts back a reservation the server refused to change; a restore is never refused for lack of free resources
+	 * @return The agent's ack; on success the ack's message is the task's previous reservation
+	 */
+	public NetworkAck setTaskResources(QueuedTask qt, int used, boolean restore) {
+		NetworkAck ack = null;
+		try {
+			ack = sendCmd("SETTASKRES");
+		} catch(IOException e) {
+			setIsValid(false);
+			return null;
+		}
+		if(ack != null && ack.isOk()) {
+			try {
+				getOut().writeUTF(qt.getServerHost());
+				getOut().writeInt(qt.getServerPort());
+				getOut().writeLong(qt.getQueueId());
+				getOut().writeInt(used);
+				getOut().writeBoolean(restore);
+				getOut().flush();
+				return (NetworkAck)readObj();
+			} catch(IOException e) {
+				LOG.error("IOError", e);
+				setIsValid(false);
+				return NetworkAck.get(NetworkAck.ERR + e.getMessage());
+			}
+		}
+		return NetworkAck.get(NetworkAck.ERR + "Set task resources command rejected by agent!");
+	}
+}
@@ -15,10 +15,18 @@
  */
 package com.google.code.sagetvaddons.sjq.agent.network;
 
+import java.io.DataOutput;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
+import com.google.code.sagetvaddons.sjq.agent.Metrics;
+
 import com.google.code.sagetvaddons.sjq.listener.ListenerClient;
 import com.google.code.sagetvaddons.sjq.listener.NetworkAck;
 import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
@@ -26,8 +34,161 @@ import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
 public final class ServerClient extends ListenerClient {
 	static private final Logger LOG = Logger.getLogger(ServerClient.class);
 
+	/**
+	 * How long to remember that a server doesn't support the compact encoding before asking it again
+	 */
+	static private final long LEGACY_RECHECK = 3600000L;
+	static private final Map<String, Long> LEGACY_SERVERS = new ConcurrentHashMap<String, Long>();
+	/**
+	 * How long to wait on the server before giving up on the connection; without it a server that stops responding holds the caller forever
+	 */
+	static private final int READ_TIMEOUT = 60000;
+
+	static private final Metrics.Counter OUTPUT_SENT = Metrics.get().counter("output_sent_bytes_total", "Test and exe output delivered to servers, in bytes as encoded on the wire", "output");
+
+	private final String serverHost;
+	private final int serverPort;
+	private final int wireVersion;
+	private long lastUsed;
+	private boolean timedOut;
+
 	public ServerClient(String host, int port) throws IOException {
 		super(host, port, ServerClient.class.getPackage().getName());
+		serverHost = host;
+		serverPort = port;
+		lastUsed = 0;
+		timedOut = false;
+		setSocketOptions();
+		int version;
+		try {
+			version = negotiate();
+		} catch(IOException e) {
+			close();
+			throw e;
+		} catch(RuntimeException e) {
+			close();
+			throw e;
+		}
+		wireVersion = version;
+	}
+
+	/**
+	 * Turn off Nagle's algorithm for the connection and set its read timeout.  Every command is a few small writes
+	 * followed by a wait for the server's reply, so with Nagle on each exchange stalls until the server's delayed ACK
+	 * fires (~40ms on most stacks).  ListenerClient doesn't expose its socket, hence the reflection; if that fails the
+	 * connection still works, just slower and without a timeout.
+	 */
+	private void setSocketOptions() {
+		try {
+			Field f = ListenerClient.class.getDeclaredField("sock");
+			f.setAccessible(true);
+			Socket sock = (Socket)f.get(this);
+			sock.setTcpNoDelay(true);
+			sock.setSoTimeout(READ_TIMEOUT);
+		} catch(Exception e) {
+			LOG.warn("Unable to set socket options on connection to " + serverHost + ":" + serverPort, e);
+		}
+	}
+
+	@Override
+	public NetworkAck sendCmd(String cmd) throws IOException {
+		try {
+			return super.sendCmd(cmd);
+		} catch(SocketTimeoutException e) {
+			throw timedOut(e);
+		}
+	}
+
+	@Override
+	public Object readObj() throws IOException {
+		try {
+			return super.readObj();
+		} catch(SocketTimeoutException e) {
+			throw timedOut(e);
+		}
+	}
+
+	private SocketTimeoutException timedOut(SocketTimeoutException e) {
+		LOG.error("Server " + serverHost + ":" + serverPort + " did not respond within " + READ_TIMEOUT + "ms; dropping the connection");
+		timedOut = true;
+		setIsValid(false);
+		return e;
+	}
+
+	/**
+	 * @return True if the server stopped responding on this connection; the request shouldn't be retried right away
+	 */
+	boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Agree on the payload encoding to use with the server; servers that don't know the PROTO command get Java serialization
+	 * @return The negotiated WireCodec version
+	 * @throws IOException If the connection failed during negotiation
+	 */
+	private int negotiate() throws IOException {
+		String key = serverHost + ":" + serverPort;
+		Long legacySince = LEGACY_SERVERS.get(key);
+		if(legacySince != null && System.currentTimeMillis() - legacySince < LEGACY_RECHECK)
+			return WireCodec.SERIALIZED;
+		NetworkAck ack = sendCmd("PROTO");
+		if(ack == null || !ack.isOk()) {
+			LOG.info("Server " + key + " does not support the compact encoding; using serialization");
+			LEGACY_SERVERS.put(key, System.currentTimeMillis());
+			return WireCodec.SERIALIZED;
+		}
+		getOut().writeInt(WireCodec.VERSION);
+		getOut().flush();
+		int version = getIn().readInt();
+		ack = (NetworkAck)readObj();
+		if(ack == null || !ack.isOk())
+			throw new IOException("Server rejected encoding negotiation!");
+		LEGACY_SERVERS.remove(key);
+		return version;
+	}
+
+	/**
+	 * Identify a task to the server; compact peers only need the queue id
+	 * @param qt The task
+	 * @throws IOException On any error
+	 */
+	private void writeTaskRef(QueuedTask qt) throws IOException {
+		if(wireVersion >= 1)
+			getOut().writeLong(qt.getQueueId());
+		else
+			writeTask(qt);
+	}
+
+	/**
+	 * Serialize a task in full; the stream is reset first since a pooled connection may have already carried this
+	 * same task (i.e. LOGEXE then UPDATE), which would otherwise be sent as a reference to the copy the server
+	 * already has, state and all
+	 * @param qt The task
+	 * @throws IOException On any error
+	 */
+	private void writeTask(QueuedTask qt) throws IOException {
+		getOut().reset();
+		getOut().writeObject(qt);
+	}
+
+	String getServerHost() {
+		return serverHost;
+	}
+
+	int getServerPort() {
+		return serverPort;
+	}
+
+	/**
+	 * @return The time this connection was last returned to the pool or zero if it has never been used
+	 */
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	void setLastUsed(long lastUsed) {
+		this.lastUsed = lastUsed;
 	}
 	
 	public NetworkAck setTaskResources(QueuedTask qt, int used) {
@@ -40,7 +201,7 @@ public final class ServerClient extends ListenerClient {
 		}
 		if(ack != null && ack.isOk()) {
 			try {
-				getOut().writeObject(qt);
+				writeTaskRef(qt);
 				getOut().writeInt(used);
 				getOut().flush();
 				return (NetworkAck)readObj();
@@ -108,6 +269,16 @@ public final class ServerClient extends ListenerClient {
 	}
 	
 	public NetworkAck update(QueuedTask qt) {
+		return update(qt, null);
+	}
+
+	/**
+	 * Send a task's updated state to the server
+	 * @param qt The task
+	 * @param base The task as it was originally received from the server; compact peers are only sent what changed since then.  May be null.
+	 * @return The server's ack or null if the command could not be sent
+	 */
+	public NetworkAck update(QueuedTask qt, QueuedTask base) {
 		NetworkAck ack = null;
 		try {
 			ack = sendCmd("UPDATE");
@@ -118,7 +289,12 @@ public final class ServerClient extends ListenerClient {
 		}
 		if(ack != null && ack.isOk()) {
 			try {
-				getOut().writeObject(qt);
+				if(wireVersion >= 1) {
+					getOut().writeLong(qt.getQueueId());
+					WireCodec.writeDelta(getOut(), base, qt);
+					getOut().flush();
+				} else
+					writeTask(qt);
 				return (NetworkAck)readObj();
 			} catch (IOException e) {
 				LOG.error("IOError", e);
@@ -129,20 +305,47 @@ public final class ServerClient extends ListenerClient {
 		return NetworkAck.get(NetworkAck.ERR + "Update command rejected by server!");
 	}
 
-	private void writeChunkedString(String output) throws IOException {
+	/**
+	 * Write a string of any length as a series of UTF chunks
+	 * @param out The destination
+	 * @param output The string to write
+	 * @return The number of bytes written
+	 * @throws IOException On any error
+	 */
+	static long writeChunkedString(DataOutput out, String output) throws IOException {
 		final int MAX_CHUNK = 60000;
 		int chunks = output.length() / MAX_CHUNK;
 		if(output.length() % MAX_CHUNK != 0)
 			++chunks;
-		getOut().writeInt(chunks);
+		out.writeInt(chunks);
+		long bytes = 4;
 		for(int i = 0; i < chunks; ++i) {
 			int start = i * MAX_CHUNK;
 			int end = start + MAX_CHUNK;
 			if(end > output.length())
 				end = output.length();
 			String chunk = output.substring(start, end);
-			getOut().writeUTF(chunk);
+			out.writeUTF(chunk);
+			bytes += 2 + getUtfLength(chunk);
 		}
+		return bytes;
+	}
+
+	/**
+	 * @return The length of the string in the modified UTF-8 used by writeUTF()
+	 */
+	static private int getUtfLength(String s) {
+		int len = 0;
+		for(int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if(c >= 0x0001 && c <= 0x007F)
+				++len;
+			else if(c > 0x07FF)
+				len += 3;
+			else
+				len += 2;
+		}
+		return len;
 	}
 	
 	public NetworkAck logTaskOutput(QueuedTask qt, String output) {
@@ -156,10 +359,13 @@ public final class ServerClient extends ListenerClient {
 		}
 		if(ack != null && ack.isOk()) {
 			try {
-				getOut().writeObject(qt);
-				writeChunkedString(output);
+				writeTaskRef(qt);
+				long bytes = writeChunkedString(getOut(), output);
 				getOut().flush();
-				return (NetworkAck)readObj();
+				NetworkAck result = (NetworkAck)readObj();
+				if(result != null && result.isOk())
+					OUTPUT_SENT.add(bytes, "exe");
+				return result;
 			} catch(IOException e) {
 				LOG.error("IOError", e);
 				setIsValid(false);
@@ -180,10 +386,13 @@ public final class ServerClient extends ListenerClient {
 		}
 		if(ack != null && ack.isOk()) {
 			try {
-				getOut().writeObject(qt);
-				writeChunkedString(output);
+				writeTaskRef(qt);
+				long bytes = writeChunkedString(getOut(), output);
 				getOut().flush();
-				return (NetworkAck)readObj();
+				NetworkAck result = (NetworkAck)readObj();
+				if(result != null && result.isOk())
+					OUTPUT_SENT.add(bytes, "test");
+				return result;
 			} catch(IOException e) {
 				LOG.error("IOError", e);
 				setIsValid(false);
@@ -0,0 +1,201 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.network;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+import com.google.code.sagetvaddons.sjq.agent.Metrics;
+
+/**
+ * <p>Keeps connections to SJQ servers open between requests.</p>
+ * <p>
+ *    The server's listener keeps a connection open until the client sends QUIT so a single connection can carry
+ *    any number of commands.  Connections are kept per server host/port and are reused until they fail or sit
+ *    idle for too long.  A request that fails on a reused connection is retried once on a brand new connection,
+ *    which covers the case of a server restart invalidating every pooled connection.  Connections have a read
+ *    timeout; a server that doesn't answer within it fails the request and the connection is dropped.
+ * </p>
+ * @author dbattams
+ *
+ */
+public final class ServerClientPool {
+	static private final Logger LOG = Logger.getLogger(ServerClientPool.class);
+
+	static private final int MAX_IDLE_PER_SERVER = 4;
+	static private final long MAX_IDLE_MILLIS = 60000L;
+
+	static private final Metrics.Histogram ROUND_TRIP = Metrics.get().histogram("server_request_seconds", "Round trip time of requests to servers, including connecting when no pooled connection is available", Metrics.TIME_BUCKETS, "server");
+	static private final Metrics.Counter FAILURES = Metrics.get().counter("server_failures_total", "Requests to servers that failed, by server and the step that failed (connect or request)", "server", "step");
+
+	/**
+	 * A unit of work to perform against a pooled server connection
+	 * @param <T> The result type of the request
+	 */
+	static public interface Request<T> {
+		/**
+		 * Perform this request; implementations signal a broken connection by leaving the client invalid (i.e. ServerClient.isValid() returns false)
+		 * @param clnt The connection to perform the request with
+		 * @return The result of the request
+		 */
+		public T send(ServerClient clnt);
+	}
+
+	static private final Map<String, LinkedList<ServerClient>> IDLE = new HashMap<String, LinkedList<ServerClient>>();
+	static {
+		Timer t = new Timer("SJQ4ServerClientReaper", true);
+		t.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				closeIdle();
+			}
+		}, MAX_IDLE_MILLIS, MAX_IDLE_MILLIS / 2);
+	}
+
+	static private final String genKey(String host, int port) {
+		return host + ":" + port;
+	}
+
+	/**
+	 * Perform a request against the given server, reusing an open connection when one is available
+	 * @param <T> The result type of the request
+	 * @param host The server host
+	 * @param port The server port
+	 * @param req The request to perform
+	 * @return The result of the request
+	 * @throws IOException If a connection to the server could not be established
+	 */
+	static public <T> T execute(String host, int port, Request<T> req) throws IOException {
+		String server = genKey(host, port);
+		long start = System.currentTimeMillis();
+		String failed = "connect";
+		ServerClient clnt = null;
+		try {
+			clnt = borrow(host, port);
+			boolean reused = clnt.getLastUsed() > 0;
+			failed = "request";
+			T result = req.send(clnt);
+			// A server that timed out is stalled, not restarted; a new connection would only wait again
+			if(!clnt.isValid() && reused && !clnt.isTimedOut()) {
+				LOG.info("Pooled connection to " + server + " has gone stale; retrying request on a new connection");
+				discard(clnt);
+				clnt = null;
+				failed = "connect";
+				clnt = connect(host, port);
+				failed = "request";
+				result = req.send(clnt);
+			}
+			if(clnt.isValid())
+				failed = null;
+			return result;
+		} finally {
+			ROUND_TRIP.observeSince(start, server);
+			if(failed != null)
+				FAILURES.inc(server, failed);
+			if(clnt != null)
+				release(clnt);
+		}
+	}
+
+	static private ServerClient borrow(String host, int port) throws IOException {
+		String key = genKey(host, port);
+		while(true) {
+			ServerClient clnt;
+			synchronized(IDLE) {
+				LinkedList<ServerClient> idle = IDLE.get(key);
+				if(idle == null || idle.isEmpty())
+					break;
+				clnt = idle.removeFirst();
+			}
+			if(isHealthy(clnt))
+				return clnt;
+			discard(clnt);
+		}
+		return connect(host, port);
+	}
+
+	static private ServerClient connect(String host, int port) throws IOException {
+		LOG.debug("Opening new connection to " + genKey(host, port));
+		return new ServerClient(host, port);
+	}
+
+	static private void release(ServerClient clnt) {
+		if(!clnt.isValid()) {
+			discard(clnt);
+			return;
+		}
+		clnt.setLastUsed(System.currentTimeMillis());
+		String key = genKey(clnt.getServerHost(), clnt.getServerPort());
+		synchronized(IDLE) {
+			LinkedList<ServerClient> idle = IDLE.get(key);
+			if(idle == null) {
+				idle = new LinkedList<ServerClient>();
+				IDLE.put(key, idle);
+			}
+			if(idle.size() < MAX_IDLE_PER_SERVER) {
+				idle.addFirst(clnt);
+				return;
+			}
+		}
+		discard(clnt);
+	}
+
+	static private boolean isHealthy(ServerClient clnt) {
+		return clnt.isValid() && System.currentTimeMillis() - clnt.getLastUsed() < MAX_IDLE_MILLIS;
+	}
+
+	static private void discard(ServerClient clnt) {
+		try {
+			clnt.close();
+		} catch(RuntimeException e) {
+			LOG.warn("Error closing server connection", e);
+		}
+	}
+
+	/**
+	 * Close all pooled connections that have been idle for too long
+	 */
+	static void closeIdle() {
+		Collection<ServerClient> stale = new ArrayList<ServerClient>();
+		synchronized(IDLE) {
+			for(Iterator<LinkedList<ServerClient>> itr = IDLE.values().iterator(); itr.hasNext();) {
+				LinkedList<ServerClient> idle = itr.next();
+				for(Iterator<ServerClient> clnts = idle.iterator(); clnts.hasNext();) {
+					ServerClient clnt = clnts.next();
+					if(!isHealthy(clnt)) {
+						clnts.remove();
+						stale.add(clnt);
+					}
+				}
+				if(idle.isEmpty())
+					itr.remove();
+			}
+		}
+		for(ServerClient clnt : stale)
+			discard(clnt);
+	}
+
+	private ServerClientPool() {}
+}
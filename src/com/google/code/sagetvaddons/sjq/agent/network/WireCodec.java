@@ -0,0 +1,466 @@
+/*
+ *      Copyright 2011 Battams, Derek
+ *
+ *       Licensed under the Apache License, Version 2.0 (the "License");
+ *       you may not use this file except in compliance with the License.
+ *       You may obtain a copy of the License at
+ *
+ *          http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *       Unless required by applicable law or agreed to in writing, software
+ *       distributed under the License is distributed on an "AS IS" BASIS,
+ *       WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *       See the License for the specific language governing permissions and
+ *       limitations under the License.
+ */
+package com.google.code.sagetvaddons.sjq.agent.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.code.sagetvaddons.sjq.shared.Client;
+import com.google.code.sagetvaddons.sjq.shared.QueuedTask;
+import com.google.code.sagetvaddons.sjq.shared.Task;
+
+/**
+ * <p>The compact binary encoding of the objects exchanged between agents and servers.</p>
+ * <p>
+ *    Peers agree on a version with the PROTO command at the start of a connection; version zero means the peer
+ *    doesn't support the compact encoding and objects are sent with Java serialization, as always.  Numbers are
+ *    written as variable length (zig-zag) ints, strings and collections are length prefixed and a length of zero
+ *    means null.  Strings over 1MB and collections over 4096 entries are rejected when read.  Task state updates
+ *    only carry the fields that changed (see writeDelta()).
+ * </p>
+ * <p>
+ *    The version negotiated for the connection being handled by the current listener thread is available via
+ *    getPeerVersion(); commands use it to decide how to read and write their payloads.
+ * </p>
+ * @author dbattams
+ *
+ */
+public final class WireCodec {
+
+	/**
+	 * The highest version of the compact encoding supported by this agent; version 2 adds the host load figures to the PING response
+	 */
+	static public final int VERSION = 2;
+
+	/**
+	 * The version used when a peer doesn't support the compact encoding
+	 */
+	static public final int SERIALIZED = 0;
+
+	static private final int DELTA_STATE = 1;
+	static private final int DELTA_STARTED = 2;
+	static private final int DELTA_COMPLETED = 4;
+	static private final int DELTA_EXE_ARGS = 8;
+	static private final int DELTA_TEST_ARGS = 16;
+	static private final int DELTA_METADATA = 32;
+
+	/**
+	 * The largest string, in bytes, and the most map entries or array elements accepted from a peer; lengths come
+	 * straight off the wire so without a limit one bad length could exhaust the heap
+	 */
+	static private final int MAX_STRING = 1024 * 1024;
+	static private final int MAX_ENTRIES = 4096;
+
+	static private final ThreadLocal<Integer> PEER_VERSION = new ThreadLocal<Integer>() {
+		@Override
+		protected Integer initialValue() {
+			return SERIALIZED;
+		}
+	};
+
+	/**
+	 * @return The encoding version negotiated for the connection being handled by the current thread
+	 */
+	static public int getPeerVersion() {
+		return PEER_VERSION.get();
+	}
+
+	/**
+	 * @param version The encoding version negotiated for the connection being handled by the current thread
+	 */
+	static public void setPeerVersion(int version) {
+		PEER_VERSION.set(version);
+	}
+
+	/**
+	 * Read a task from a listener connection, in whichever encoding was negotiated for it
+	 * @param in The connection's input stream
+	 * @return The task read from the stream
+	 * @throws IOException On any error
+	 */
+	static public QueuedTask readQueuedTask(ObjectInputStream in) throws IOException {
+		if(getPeerVersion() == SERIALIZED) {
+			try {
+				return (QueuedTask)in.readObject();
+			} catch(ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+		return readQueuedTask((DataInput)in);
+	}
+
+	static public void writeQueuedTask(DataOutput out, QueuedTask qt) throws IOException {
+		writeTaskFields(out, qt);
+		writeVarLong(out, qt.getQueueId());
+		writeMap(out, qt.getMetadata());
+		writeDate(out, qt.getCreated());
+		writeDate(out, qt.getStarted());
+		writeDate(out, qt.getCompleted());
+		writeString(out, qt.getState() != null ? qt.getState().toString() : null);
+		out.writeBoolean(qt.getAssignee() != null);
+		if(qt.getAssignee() != null)
+			writeClient(out, qt.getAssignee(), false);
+		writeString(out, qt.getServerHost());
+		writeVarInt(out, qt.getServerPort());
+		writeVarInt(out, qt.getRmiPort());
+	}
+
+	static public QueuedTask readQueuedTask(DataInput in) throws IOException {
+		QueuedTask qt = new QueuedTask();
+		readTaskFields(in, qt);
+		qt.setQueueId(readVarLong(in));
+		qt.setMetadata(readMap(in));
+		qt.setCreated(readDate(in));
+		qt.setStarted(readDate(in));
+		qt.setCompleted(readDate(in));
+		String state = readString(in);
+		qt.setState(state != null ? readEnum(QueuedTask.State.class, state) : null);
+		if(in.readBoolean())
+			qt.setAssignee(readClient(in, false));
+		qt.setServerHost(readString(in));
+		qt.setServerPort(readVarInt(in));
+		qt.setRmiPort(readVarInt(in));
+		return qt;
+	}
+
+	/**
+	 * Write only the fields of a task that an agent changes while running it and that differ from the given base
+	 * @param out The destination
+	 * @param base The task as it was received from the server or null to write all of the agent updatable fields
+	 * @param qt The current state of the task
+	 * @throws IOException On any error
+	 */
+	static public void writeDelta(DataOutput out, QueuedTask base, QueuedTask qt) throws IOException {
+		Map<String, String> metaDelta = new HashMap<String, String>();
+		Map<String, String> meta = qt.getMetadata() != null ? qt.getMetadata() : new HashMap<String, String>();
+		Map<String, String> baseMeta = base != null && base.getMetadata() != null ? base.getMetadata() : new HashMap<String, String>();
+		for(Map.Entry<String, String> e : meta.entrySet())
+			if(!equal(e.getValue(), baseMeta.get(e.getKey())))
+				metaDelta.put(e.getKey(), e.getValue());
+		for(String k : baseMeta.keySet())
+			if(!meta.containsKey(k))
+				metaDelta.put(k, null);
+		int mask = 0;
+		if(base == null || base.getState() != qt.getState())
+			mask |= DELTA_STATE;
+		if(base == null || !equal(base.getStarted(), qt.getStarted()))
+			mask |= DELTA_STARTED;
+		if(base == null || !equal(base.getCompleted(), qt.getCompleted()))
+			mask |= DELTA_COMPLETED;
+		if(base == null || !equal(base.getExeArguments(), qt.getExeArguments()))
+			mask |= DELTA_EXE_ARGS;
+		if(base == null || !equal(base.getTestArgs(), qt.getTestArgs()))
+			mask |= DELTA_TEST_ARGS;
+		if(!metaDelta.isEmpty())
+			mask |= DELTA_METADATA;
+		writeVarInt(out, mask);
+		if((mask & DELTA_STATE) != 0)
+			writeString(out, qt.getState() != null ? qt.getState().toString() : null);
+		if((mask & DELTA_STARTED) != 0)
+			writeDate(out, qt.getStarted());
+		if((mask & DELTA_COMPLETED) != 0)
+			writeDate(out, qt.getCompleted());
+		if((mask & DELTA_EXE_ARGS) != 0)
+			writeString(out, qt.getExeArguments());
+		if((mask & DELTA_TEST_ARGS) != 0)
+			writeString(out, qt.getTestArgs());
+		if((mask & DELTA_METADATA) != 0)
+			writeMap(out, metaDelta);
+	}
+
+	/**
+	 * Apply a delta written by writeDelta() to a task
+	 * @param in The source
+	 * @param qt The task to update; metadata entries with null values in the delta are removed from it
+	 * @throws IOException On any error
+	 */
+	static public void readDelta(DataInput in, QueuedTask qt) throws IOException {
+		int mask = readVarInt(in);
+		if((mask & DELTA_STATE) != 0) {
+			String state = readString(in);
+			qt.setState(state != null ? readEnum(QueuedTask.State.class, state) : null);
+		}
+		if((mask & DELTA_STARTED) != 0)
+			qt.setStarted(readDate(in));
+		if((mask & DELTA_COMPLETED) != 0)
+			qt.setCompleted(readDate(in));
+		if((mask & DELTA_EXE_ARGS) != 0)
+			qt.setExeArguments(readString(in));
+		if((mask & DELTA_TEST_ARGS) != 0)
+			qt.setTestArgs(readString(in));
+		if((mask & DELTA_METADATA) != 0) {
+			Map<String, String> meta = qt.getMetadata();
+			if(meta == null) {
+				meta = new HashMap<String, String>();
+				qt.setMetadata(meta);
+			}
+			for(Map.Entry<String, String> e : readMap(in).entrySet()) {
+				if(e.getValue() != null)
+					meta.put(e.getKey(), e.getValue());
+				else
+					meta.remove(e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * @param qt The task to copy
+	 * @return A deep copy of the given task
+	 */
+	static public QueuedTask copy(QueuedTask qt) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			writeQueuedTask(new DataOutputStream(buf), qt);
+			return readQueuedTask((DataInput)new DataInputStream(new ByteArrayInputStream(buf.toByteArray())));
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write an agent's details
+	 * @param out The destination
+	 * @param clnt The client to write
+	 * @param withTasks If true, the client's tasks and dir mappings are written too
+	 * @throws IOException On any error
+	 */
+	static public void writeClient(DataOutput out, Client clnt, boolean withTasks) throws IOException {
+		writeString(out, clnt.getHost());
+		writeVarInt(out, clnt.getPort());
+		writeVarInt(out, clnt.getFreeResources());
+		writeString(out, clnt.getSchedule());
+		writeString(out, clnt.getState() != null ? clnt.getState().toString() : null);
+		writeDate(out, clnt.getLastUpdate());
+		writeVarInt(out, clnt.getMaxResources());
+		writeVarInt(out, clnt.getVersion());
+		if(withTasks)
+			writeConfig(out, clnt);
+	}
+
+	static public Client readClient(DataInput in, boolean withTasks) throws IOException {
+		Client clnt = new Client();
+		clnt.setHost(readString(in));
+		clnt.setPort(readVarInt(in));
+		clnt.setFreeResources(readVarInt(in));
+		clnt.setSchedule(readString(in));
+		String state = readString(in);
+		clnt.setState(state != null ? readEnum(Client.State.class, state) : null);
+		clnt.setLastUpdate(readDate(in));
+		clnt.setMaxResources(readVarInt(in));
+		clnt.setVersion(readVarInt(in));
+		if(withTasks)
+			readConfig(in, clnt);
+		return clnt;
+	}
+
+	/**
+	 * Write an agent's task and dir mapping config
+	 * @param out The destination
+	 * @param clnt The client whose config is written
+	 * @throws IOException On any error
+	 */
+	static public void writeConfig(DataOutput out, Client clnt) throws IOException {
+		Task[] tasks = clnt.getTasks();
+		writeVarInt(out, tasks != null ? tasks.length + 1 : 0);
+		if(tasks != null)
+			for(Task t : tasks)
+				writeTaskFields(out, t);
+		writeString(out, clnt.getMapDir());
+	}
+
+	/**
+	 * Read an agent's task and dir mapping config into the given client
+	 * @param in The source
+	 * @param clnt The client to update
+	 * @throws IOException On any error
+	 */
+	static public void readConfig(DataInput in, Client clnt) throws IOException {
+		int count = readVarInt(in);
+		if(count < 0 || count - 1 > MAX_ENTRIES)
+			throw new IOException("Invalid task count: " + count);
+		if(count > 0) {
+			Task[] tasks = new Task[count - 1];
+			for(int i = 0; i < tasks.length; ++i) {
+				tasks[i] = new Task();
+				readTaskFields(in, tasks[i]);
+			}
+			clnt.setTasks(tasks);
+		} else
+			clnt.setTasks(null);
+		clnt.setMapDir(readString(in));
+	}
+
+	/**
+	 * @param clnt The client
+	 * @return A fingerprint of an agent's task and dir mapping config, used to avoid resending unchanged config
+	 */
+	static public long fingerprint(Client clnt) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			writeConfig(new DataOutputStream(buf), clnt);
+			long hash = 1125899906842597L;
+			for(byte b : buf.toByteArray())
+				hash = 31 * hash + b;
+			return hash;
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static private void writeTaskFields(DataOutput out, Task t) throws IOException {
+		writeString(out, t.getId());
+		writeVarInt(out, t.getRequiredResources());
+		writeVarInt(out, t.getMaxInstances());
+		writeString(out, t.getSchedule());
+		writeString(out, t.getExecutable());
+		writeString(out, t.getExeArguments());
+		writeVarLong(out, t.getMaxTime());
+		out.writeFloat(t.getMaxTimeRatio());
+		writeVarInt(out, t.getMinReturnCode());
+		writeVarInt(out, t.getMaxReturnCode());
+		writeString(out, t.getTest());
+		writeString(out, t.getTestArgs());
+		out.writeBoolean(t.getGenSysMsgOnFailure());
+		out.writeBoolean(t.isShowIcon());
+	}
+
+	static private void readTaskFields(DataInput in, Task t) throws IOException {
+		t.setId(readString(in));
+		t.setRequiredResources(readVarInt(in));
+		t.setMaxInstances(readVarInt(in));
+		t.setSchedule(readString(in));
+		t.setExecutable(readString(in));
+		t.setExeArguments(readString(in));
+		t.setMaxTime(readVarLong(in));
+		t.setMaxTimeRatio(in.readFloat());
+		t.setMinReturnCode(readVarInt(in));
+		t.setMaxReturnCode(readVarInt(in));
+		t.setTest(readString(in));
+		t.setTestArgs(readString(in));
+		t.setGenSysMsgOnFailure(in.readBoolean());
+		t.setShowIcon(in.readBoolean());
+	}
+
+	static public void writeVarInt(DataOutput out, int val) throws IOException {
+		writeVarLong(out, val);
+	}
+
+	static public int readVarInt(DataInput in) throws IOException {
+		long val = readVarLong(in);
+		if(val < Integer.MIN_VALUE || val > Integer.MAX_VALUE)
+			throw new IOException("Encoded value is out of range for an int: " + val);
+		return (int)val;
+	}
+
+	static public void writeVarLong(DataOutput out, long val) throws IOException {
+		long zz = (val << 1) ^ (val >> 63);
+		while((zz & ~0x7FL) != 0) {
+			out.writeByte((int)((zz & 0x7F) | 0x80));
+			zz >>>= 7;
+		}
+		out.writeByte((int)zz);
+	}
+
+	static public long readVarLong(DataInput in) throws IOException {
+		long zz = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			zz |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return (zz >>> 1) ^ -(zz & 1);
+		}
+		throw new IOException("Malformed variable length number!");
+	}
+
+	static public void writeString(DataOutput out, String str) throws IOException {
+		if(str == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		byte[] data = str.getBytes("UTF-8");
+		writeVarInt(out, data.length + 1);
+		out.write(data);
+	}
+
+	static public String readString(DataInput in) throws IOException {
+		int len = readVarInt(in);
+		if(len == 0)
+			return null;
+		if(len < 0 || len - 1 > MAX_STRING)
+			throw new IOException("Invalid string length: " + len);
+		byte[] data = new byte[len - 1];
+		in.readFully(data);
+		return new String(data, "UTF-8");
+	}
+
+	/**
+	 * @return The enum constant with the given name; a name this agent doesn't know is treated as a corrupt stream
+	 */
+	static private <E extends Enum<E>> E readEnum(Class<E> type, String name) throws IOException {
+		try {
+			return Enum.valueOf(type, name);
+		} catch(IllegalArgumentException e) {
+			throw new StreamCorruptedException("Unknown " + type.getSimpleName() + " [" + name + "]");
+		}
+	}
+
+	static private void writeDate(DataOutput out, Date d) throws IOException {
+		out.writeBoolean(d != null);
+		if(d != null)
+			writeVarLong(out, d.getTime());
+	}
+
+	static private Date readDate(DataInput in) throws IOException {
+		return in.readBoolean() ? new Date(readVarLong(in)) : null;
+	}
+
+	static private void writeMap(DataOutput out, Map<String, String> map) throws IOException {
+		writeVarInt(out, map != null ? map.size() + 1 : 0);
+		if(map != null)
+			for(Map.Entry<String, String> e : map.entrySet()) {
+				writeString(out, e.getKey());
+				writeString(out, e.getValue());
+			}
+	}
+
+	static private Map<String, String> readMap(DataInput in) throws IOException {
+		int size = readVarInt(in);
+		if(size == 0)
+			return null;
+		if(size < 0 || size - 1 > MAX_ENTRIES)
+			throw new IOException("Invalid map size: " + size);
+		Map<String, String> map = new HashMap<String, String>();
+		for(int i = 1; i < size; ++i)
+			map.put(readString(in), readString(in));
+		return map;
+	}
+
+	static private boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private WireCodec() {}
+}